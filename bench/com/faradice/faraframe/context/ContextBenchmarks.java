@@ -0,0 +1,50 @@
+package com.faradice.faraframe.context;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <H1> ContextBenchmarks - run the context benchmarks. </H1>
+ *
+ * Runs all benchmarks of this package, or those matching the regular expression
+ * given as first argument, with the GC profiler so allocation rates are reported
+ * next to the timings.  The results, including the allocation rates, are written
+ * as JSON to the file given as second argument, bench/context-results.json by default.
+ *
+ * The benchmarks are not part of the FaraFrame build and need JMH only here.  Compile
+ * them from the project directory against the FaraFrame classes in bin, with the JMH
+ * annotation processor generating the benchmark harness:
+ *
+ * javac -cp bin:/libs/jmh-core-1.37.jar:/libs/jmh-generator-annprocess-1.37.jar -d bench/bin $(find bench -name '*.java')
+ *
+ * and run them with jmh-core and it's dependencies jopt-simple and commons-math3 on
+ * the class path:
+ *
+ * java -cp bin:bench/bin:/libs/* com.faradice.faraframe.context.ContextBenchmarks ContextMapBenchmark
+ *
+ * The baseline later changes are measured against is produced by running all
+ * benchmarks and committing the file:
+ *
+ * java -cp bin:bench/bin:/libs/* com.faradice.faraframe.context.ContextBenchmarks '.*Benchmark' bench/context-baseline.json
+ *
+ * Compare a later run with the baseline per benchmark and shape, on the same
+ * machine and JVM the baseline was produced with.
+ */
+public class ContextBenchmarks {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : ContextBenchmarks.class.getPackage().getName() + ".*Benchmark";
+        String results = args.length > 1 ? args[1] : "bench/context-results.json";
+        Options options = new OptionsBuilder()
+            .include(include)
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result(results)
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,67 @@
+package com.faradice.faraframe.context;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <H1> ContextHandleBenchmark - ancestry queries. </H1>
+ *
+ * Tests implied contexts of leaves against random contexts of the shape, and
+ * iterates all implied contexts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextHandleBenchmark {
+    @Param({ContextShapes.CHAIN, ContextShapes.FANOUT, ContextShapes.SPARSE})
+    public String shape;
+
+    private ContextShapes mShape;
+    private final ContextHandle[] mTargets = new ContextHandle[ContextShapes.LOOKUPS];
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mShape = ContextShapes.create(shape);
+        Random random = new Random(11);
+        for (int i = 0; i < mTargets.length; i++) {
+            mTargets[i] = mShape.mContexts[random.nextInt(mShape.mContexts.length)];
+        }
+    }
+
+    @Benchmark
+    public boolean implies() {
+        int i = mNext++ & (ContextShapes.LOOKUPS-1);
+        return mShape.mLookupContexts[i].implies(mTargets[i]);
+    }
+
+    @Benchmark
+    public boolean allImpliedContains() {
+        int i = mNext++ & (ContextShapes.LOOKUPS-1);
+        return mShape.mLookupContexts[i].getAllImplied().contains(mTargets[i]);
+    }
+
+    @Benchmark
+    public void allImpliedIterate(Blackhole blackhole) {
+        int i = mNext++ & (ContextShapes.LOOKUPS-1);
+        for (ContextHandle handle: mShape.mLookupContexts[i].getAllImplied()) {
+            blackhole.consume(handle);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.faradice.faraframe.context;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <H1> ContextListBenchmark - ContextList reads. </H1>
+ *
+ * Lists hold one value for each binding of the shape.  toList() copies the values
+ * visible from a leaf, view() returns the cached view and is iterated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextListBenchmark {
+    @Param({ContextShapes.CHAIN, ContextShapes.FANOUT, ContextShapes.SPARSE})
+    public String shape;
+
+    private ContextShapes mShape;
+    private ContextList<Object> mList;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mShape = ContextShapes.create(shape);
+        mList = new ContextList<Object>();
+        mShape.fill(mList);
+    }
+
+    @Benchmark
+    public List<Object> toList() {
+        int i = mNext++ & (ContextShapes.LOOKUPS-1);
+        return mList.toList(mShape.mLookupContexts[i],false);
+    }
+
+    @Benchmark
+    public List<Object> toListReverse() {
+        int i = mNext++ & (ContextShapes.LOOKUPS-1);
+        return mList.toList(mShape.mLookupContexts[i],true);
+    }
+
+    @Benchmark
+    public void viewIterate(Blackhole blackhole) {
+        int i = mNext++ & (ContextShapes.LOOKUPS-1);
+        for (Object value: mList.view(mShape.mLookupContexts[i],false)) {
+            blackhole.consume(value);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.faradice.faraframe.context;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <H1> ContextMapBenchmark - single threaded ContextMap reads. </H1>
+ *
+ * Resolves keys from the leaves of each shape, with and without the resolved
+ * value cache.  Each invocation uses the next of ContextShapes.LOOKUPS prepared
+ * context and key pairs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextMapBenchmark {
+    @Param({ContextShapes.CHAIN, ContextShapes.FANOUT, ContextShapes.SPARSE})
+    public String shape;
+
+    @Param({"0", "4096"})
+    public int cacheSize;
+
+    private ContextShapes mShape;
+    private ContextMap<String,Object> mMap;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mShape = ContextShapes.create(shape);
+        mMap = new ContextMap<String,Object>();
+        mShape.fill(mMap);
+        mMap.setCacheSize(cacheSize);
+    }
+
+    @Benchmark
+    public Object getBound() {
+        int i = mNext++ & (ContextShapes.LOOKUPS-1);
+        return mMap.get(mShape.mLookupContexts[i],mShape.mBoundLookupKeys[i]);
+    }
+
+    @Benchmark
+    public Object getUnbound() {
+        int i = mNext++ & (ContextShapes.LOOKUPS-1);
+        return mMap.get(mShape.mLookupContexts[i],mShape.mUnboundLookupKeys[i]);
+    }
+
+    @Benchmark
+    public boolean containsKey() {
+        int i = mNext++ & (ContextShapes.LOOKUPS-1);
+        return mMap.containsKey(mShape.mLookupContexts[i],mShape.mBoundLookupKeys[i]);
+    }
+
+    @Benchmark
+    public Set<String> keySet() {
+        int i = mNext++ & (ContextShapes.LOOKUPS-1);
+        return mMap.keySet(mShape.mLookupContexts[i]);
+    }
+}
@@ -0,0 +1,96 @@
+package com.faradice.faraframe.context;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <H1> ContextMapConcurrentBenchmark - reads shared between threads. </H1>
+ *
+ * Four threads read the same map.  ContextMap is only read, without cache, since
+ * it is not safe to modify while other threads read it.  ConcurrentContextMap is
+ * also measured with three readers and one writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextMapConcurrentBenchmark {
+    @Param({ContextShapes.CHAIN, ContextShapes.FANOUT, ContextShapes.SPARSE})
+    public String shape;
+
+    private ContextShapes mShape;
+    private ContextMap<String,Object> mMap;
+    private ConcurrentContextMap<String,Object> mConcurrentMap;
+
+    /**
+     * Position of each thread in the prepared lookups.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int mNext;
+
+        @Setup
+        public void setup() {
+            mNext = (int) Thread.currentThread().getId()*31;
+        }
+
+        int next() {
+            return mNext++ & (ContextShapes.LOOKUPS-1);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        mShape = ContextShapes.create(shape);
+        mMap = new ContextMap<String,Object>();
+        mShape.fill(mMap);
+        mConcurrentMap = new ConcurrentContextMap<String,Object>();
+        mShape.fill(mConcurrentMap);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object sharedGet(Cursor cursor) {
+        int i = cursor.next();
+        return mMap.get(mShape.mLookupContexts[i],mShape.mBoundLookupKeys[i]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object concurrentGet(Cursor cursor) {
+        int i = cursor.next();
+        return mConcurrentMap.get(mShape.mLookupContexts[i],mShape.mBoundLookupKeys[i]);
+    }
+
+    @Benchmark
+    @Group("concurrentReadWrite")
+    @GroupThreads(3)
+    public Object concurrentReader(Cursor cursor) {
+        int i = cursor.next();
+        return mConcurrentMap.get(mShape.mLookupContexts[i],mShape.mBoundLookupKeys[i]);
+    }
+
+    @Benchmark
+    @Group("concurrentReadWrite")
+    @GroupThreads(1)
+    public void concurrentWriter(Cursor cursor) {
+        int i = cursor.next() % mShape.mBoundKeys.length;
+        mConcurrentMap.put(mShape.mContexts[mShape.mBoundContexts[i]],mShape.mKeys[mShape.mBoundKeys[i]],Integer.valueOf(i));
+    }
+}
@@ -0,0 +1,71 @@
+package com.faradice.faraframe.context;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <H1> ContextMapMixedBenchmark - ContextMap under a mix of reads and writes. </H1>
+ *
+ * Each invocation is a get() from a leaf, or with probability writePercent a put()
+ * rebinding an existing key in it's context.  Writes invalidate the resolved value
+ * cache, so this shows when caching stops paying off.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextMapMixedBenchmark {
+    @Param({ContextShapes.CHAIN, ContextShapes.FANOUT, ContextShapes.SPARSE})
+    public String shape;
+
+    @Param({"0", "4096"})
+    public int cacheSize;
+
+    @Param({"1", "10", "50"})
+    public int writePercent;
+
+    private ContextShapes mShape;
+    private ContextMap<String,Object> mMap;
+    /**
+     * Binding to rewrite for each invocation, or -1 to read.
+     */
+    private final int[] mWrites = new int[ContextShapes.LOOKUPS];
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mShape = ContextShapes.create(shape);
+        mMap = new ContextMap<String,Object>();
+        mShape.fill(mMap);
+        mMap.setCacheSize(cacheSize);
+        Random random = new Random(7);
+        for (int i = 0; i < mWrites.length; i++) {
+            mWrites[i] = random.nextInt(100) < writePercent ? random.nextInt(mShape.mBoundKeys.length) : -1;
+        }
+    }
+
+    @Benchmark
+    public Object readWrite() {
+        int i = mNext++ & (ContextShapes.LOOKUPS-1);
+        int write = mWrites[i];
+        if (write >= 0) {
+            mMap.put(mShape.mContexts[mShape.mBoundContexts[write]],mShape.mKeys[mShape.mBoundKeys[write]],Integer.valueOf(i));
+            return null;
+        }
+        return mMap.get(mShape.mLookupContexts[i],mShape.mBoundLookupKeys[i]);
+    }
+}
@@ -0,0 +1,175 @@
+package com.faradice.faraframe.context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <H1> ContextShapes - context hierarchies used by the benchmarks. </H1>
+ *
+ * Builds one of the following shapes, always from the same seed so runs are comparable:
+ *
+ * chain  - 64 contexts each the only child of the previous, keys bound near the top.
+ * fanout - 6 levels of 16 contexts, each with 3 parents on the level above,
+ *          keys bound on the upper levels.
+ * sparse - root with 32 children with 32 children each, 10000 keys each bound
+ *          in 1 to 3 random contexts.
+ *
+ * Lookups are made from the leaves, the contexts furthest from the root.
+ */
+final class ContextShapes {
+    static final String CHAIN = "chain";
+    static final String FANOUT = "fanout";
+    static final String SPARSE = "sparse";
+
+    /**
+     * Number of lookups prepared, a power of two so benchmarks can cycle with a mask.
+     */
+    static final int LOOKUPS = 1024;
+
+    final ContextHandle[] mContexts;
+    final ContextHandle[] mLeaves;
+    final String[] mKeys;
+    /**
+     * Binding i binds mKeys[mBoundKeys[i]] in mContexts[mBoundContexts[i]].
+     */
+    final int[] mBoundContexts;
+    final int[] mBoundKeys;
+    /**
+     * Leaf and key used by lookup i.  Bound lookups resolve to a value, unbound do not.
+     */
+    final ContextHandle[] mLookupContexts = new ContextHandle[LOOKUPS];
+    final String[] mBoundLookupKeys = new String[LOOKUPS];
+    final String[] mUnboundLookupKeys = new String[LOOKUPS];
+
+    private ContextShapes(List<ContextHandle> contexts, List<ContextHandle> leaves, int keyCount,
+                          List<int[]> bindings, Random random) {
+        mContexts = contexts.toArray(new ContextHandle[contexts.size()]);
+        mLeaves = leaves.toArray(new ContextHandle[leaves.size()]);
+        mKeys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            mKeys[i] = "key" + i;
+        }
+        mBoundContexts = new int[bindings.size()];
+        mBoundKeys = new int[bindings.size()];
+        for (int i = 0; i < bindings.size(); i++) {
+            mBoundContexts[i] = bindings.get(i)[0];
+            mBoundKeys[i] = bindings.get(i)[1];
+        }
+        for (int i = 0; i < LOOKUPS; i++) {
+            // Pick a binding visible from the leaf, falling back to any key.
+            ContextHandle leaf = mLeaves[random.nextInt(mLeaves.length)];
+            String bound = null;
+            for (int tries = 0; bound == null && tries < 1000; tries++) {
+                int b = random.nextInt(mBoundKeys.length);
+                if (leaf.implies(mContexts[mBoundContexts[b]])) {
+                    bound = mKeys[mBoundKeys[b]];
+                }
+            }
+            mLookupContexts[i] = leaf;
+            mBoundLookupKeys[i] = bound != null ? bound : mKeys[random.nextInt(keyCount)];
+            mUnboundLookupKeys[i] = "unbound" + i;
+        }
+    }
+
+    /**
+     * Build the named shape.
+     * @param shape One of CHAIN, FANOUT or SPARSE.
+     * @return the shape
+     */
+    static ContextShapes create(String shape) {
+        Random random = new Random(42);
+        List<ContextHandle> contexts = new ArrayList<ContextHandle>();
+        List<ContextHandle> leaves = new ArrayList<ContextHandle>();
+        List<int[]> bindings = new ArrayList<int[]>();
+        int keyCount;
+        if (CHAIN.equals(shape)) {
+            ContextHandle handle = ContextHandle.newContext();
+            contexts.add(handle);
+            for (int i = 1; i < 64; i++) {
+                handle = ContextHandle.newContext(new ContextHandle[] {handle});
+                contexts.add(handle);
+            }
+            leaves.add(handle);
+            keyCount = 32;
+            for (int k = 0; k < keyCount; k++) {
+                bindings.add(new int[] {k % 16,k});
+            }
+        } else if (FANOUT.equals(shape)) {
+            List<ContextHandle> level = new ArrayList<ContextHandle>();
+            for (int i = 0; i < 16; i++) {
+                level.add(ContextHandle.newContext());
+            }
+            contexts.addAll(level);
+            for (int depth = 1; depth < 6; depth++) {
+                List<ContextHandle> next = new ArrayList<ContextHandle>();
+                for (int i = 0; i < 16; i++) {
+                    ContextHandle[] parents = new ContextHandle[3];
+                    for (int p = 0; p < parents.length; p++) {
+                        parents[p] = level.get(random.nextInt(level.size()));
+                    }
+                    next.add(ContextHandle.newContext(parents));
+                }
+                contexts.addAll(next);
+                level = next;
+            }
+            leaves.addAll(level);
+            keyCount = 64;
+            for (int k = 0; k < keyCount; k++) {
+                bindings.add(new int[] {random.nextInt(48),k});
+            }
+        } else if (SPARSE.equals(shape)) {
+            ContextHandle root = ContextHandle.newContext();
+            contexts.add(root);
+            for (int i = 0; i < 32; i++) {
+                ContextHandle child = ContextHandle.newContext(new ContextHandle[] {root});
+                contexts.add(child);
+                for (int j = 0; j < 32; j++) {
+                    ContextHandle leaf = ContextHandle.newContext(new ContextHandle[] {child});
+                    contexts.add(leaf);
+                    leaves.add(leaf);
+                }
+            }
+            keyCount = 10000;
+            for (int k = 0; k < keyCount; k++) {
+                int count = 1+random.nextInt(3);
+                for (int b = 0; b < count; b++) {
+                    bindings.add(new int[] {random.nextInt(contexts.size()),k});
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        return new ContextShapes(contexts,leaves,keyCount,bindings,random);
+    }
+
+    /**
+     * Bind all keys of this shape in a map.
+     * @param map Map to fill
+     */
+    void fill(ContextMap<String,Object> map) {
+        for (int i = 0; i < mBoundKeys.length; i++) {
+            map.put(mContexts[mBoundContexts[i]],mKeys[mBoundKeys[i]],Integer.valueOf(i));
+        }
+    }
+
+    /**
+     * Bind all keys of this shape in a concurrent map.
+     * @param map Map to fill
+     */
+    void fill(ConcurrentContextMap<String,Object> map) {
+        for (int i = 0; i < mBoundKeys.length; i++) {
+            map.put(mContexts[mBoundContexts[i]],mKeys[mBoundKeys[i]],Integer.valueOf(i));
+        }
+    }
+
+    /**
+     * Add one value to a list for each binding of this shape.
+     * @param list List to fill
+     */
+    void fill(ContextList<Object> list) {
+        for (int i = 0; i < mBoundKeys.length; i++) {
+            list.add(mContexts[mBoundContexts[i]],mKeys[mBoundKeys[i]]);
+        }
+    }
+}
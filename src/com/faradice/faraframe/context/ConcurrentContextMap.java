@@ -0,0 +1,175 @@
+package com.faradice.faraframe.context;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <H1> ConcurrentContextMap - thread safe ContextMap.</H1>
+ *
+ * Behaves like ContextMap but can be shared between threads without external
+ * locking.  Bindings for each key are copy-on-write: a ContextBinding is never
+ * modified once it has been published in the underlying ConcurrentHashMap, so
+ * get() and containsKey() never block and never see a partially updated binding.
+ *
+ * Writes replace the binding of a key with compare-and-set, so concurrent writes
+ * to the same key are linearizable.  Each write copies the bindings of its key,
+ * which makes this class best suited for read-mostly data.
+ *
+ * Unlike ContextMap null keys are not supported.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentContextMap<K,V> {
+
+    /**
+     * Key:  Key as received in method calls.
+     * Value: ContextBinding objects, never modified after they are put in the map.
+     */
+    private final ConcurrentHashMap<K,ContextBinding<V>> mMap = new ConcurrentHashMap<K,ContextBinding<V>>();
+
+    /**
+     * Bind value to key in specified context.  The same key-value binding
+     * will be visible in child contexts.  Note that null values can be bound
+     * also.  To remove binding use remove().
+     * @param handle
+     * @param key
+     * @param value
+     */
+    public void put(ContextHandle handle,K key,V value) {
+        while (true) {
+            ContextBinding<V> old = mMap.get(key);
+            ContextBinding<V> binding = old == null ? new ContextBinding<V>() : new ContextBinding<V>(old);
+            binding.set(handle,value);
+            if (old == null) {
+                if (mMap.putIfAbsent(key,binding) == null) return;
+            } else if (mMap.replace(key,old,binding)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get value bound to key in specified context.   If no binding exists in
+     * parent binding (if any) will be used.
+     * @param handle
+     * @param key
+     * @return the value
+     */
+    public V get(ContextHandle handle,Object key) {
+        ContextBinding<V> binding = mMap.get(key);
+        if (binding == null) return null;
+        return binding.get(handle);
+    }
+
+    /**
+     * Get value bound to key in the current context, see CurrentContext.
+     * @param key
+     * @return the value
+     * @throws IllegalStateException if there is no current context.
+     */
+    public V get(Object key) {
+        return get(CurrentContext.require(),key);
+    }
+
+    /**
+     * Get value bound to key in exactly this context.  Parent context is
+     * not used.
+     * @param handle
+     * @param key
+     * @return  the value
+     */
+    public V getExact(ContextHandle handle,K key) {
+        ContextBinding<V> binding = mMap.get(key);
+        if (binding == null) return null;
+        return binding.getExact(handle);
+    }
+
+    /**
+     * Check if specified key is bound.  Parent context is used if no exact
+     * binding exists.
+     * @param handle
+     * @param key
+     * @return  True if key is bound, else false
+     */
+    public boolean containsKey(ContextHandle handle,Object key) {
+        ContextBinding<V> binding = mMap.get(key);
+        return binding != null && binding.contains(handle);
+    }
+
+    /**
+     * Check if specified key is bound in the current context, see CurrentContext.
+     * @param key
+     * @return  True if key is bound, else false
+     * @throws IllegalStateException if there is no current context.
+     */
+    public boolean containsKey(Object key) {
+        return containsKey(CurrentContext.require(),key);
+    }
+
+    /**
+     * Check if specified key is bound.  Parent context is not used.
+     * @param handle
+     * @param key
+     * @return True if key is bound, else false
+     */
+    public boolean containsKeyExact(ContextHandle handle,K key) {
+        ContextBinding<V> binding = mMap.get(key);
+        return binding != null && binding.containsExact(handle);
+    }
+
+    /**
+     * Remove binding for key in this context.  Subsequent calls to get() will
+     * always use parent context if available.
+     * @param handle
+     * @param key
+     */
+    public void remove(ContextHandle handle,Object key) {
+        while (true) {
+            ContextBinding<V> old = mMap.get(key);
+            if (old == null || !old.containsExact(handle)) return;
+            if (old.size() == 1) {
+                if (mMap.remove(key,old)) return;
+            } else {
+                ContextBinding<V> binding = new ContextBinding<V>(old);
+                binding.remove(handle);
+                @SuppressWarnings("unchecked")
+                K k = (K) key;
+                if (mMap.replace(k,old,binding)) return;
+            }
+        }
+    }
+
+    /**
+     * Remove all bindings for specified context.  This is the same as calling
+     * remove() on each key in keySet().  Each key is removed atomically, but
+     * bindings added concurrently for the same context may survive.
+     * @param handle
+     */
+    public void removeAll(ContextHandle handle) {
+        for (Map.Entry<K,ContextBinding<V>> entry: mMap.entrySet()) {
+            if (entry.getValue().containsExact(handle)) {
+                remove(handle,entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Get the keyset for specified context.  This will return all keys bound
+     * in the contex or any parent context.  The set is a snapshot and cannot be modified.
+     * @param handle
+     * @return the keyset
+     */
+    public Set<K> keySet(ContextHandle handle) {
+        Set<K> result = new HashSet<K>();
+        for (Map.Entry<K,ContextBinding<V>> entry: mMap.entrySet()) {
+            if (entry.getValue().contains(handle)) {
+                result.add(entry.getKey());
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+}
@@ -1,7 +1,6 @@
 package com.faradice.faraframe.context;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -14,6 +13,8 @@ import java.util.Set;
  * Binding an object to a child context will override the binding in the child
  * context only.
  * 
+ * Bindings are stored in an open addressed table keyed by context id, so resolving
+ * a binding only scans the ancestor ids of the context and never hashes handles.
  *  
  * <p> Author Vilmundur Palmason
  * <p> Created Oct 28, 2003
@@ -21,7 +22,49 @@ import java.util.Set;
  * @param <T> 
  */
 public class ContextBinding<T> {
-    private Map<ContextHandle,T> mContextMap = new HashMap<ContextHandle,T>();
+    private static final int INITIAL_CAPACITY = 2;
+
+    /**
+     * Context ids, 0 marks an empty slot.  Length is always a power of two.
+     */
+    private int[] mIds = new int[INITIAL_CAPACITY];
+    /**
+     * Bound contexts, null if this binding only keeps ids so contexts can be
+     * garbage collected (see ContextReclaimer).
+     */
+    private ContextHandle[] mHandles;
+    private Object[] mValues = new Object[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * Create a binding without any bound contexts.
+     */
+    public ContextBinding() {
+        this(true);
+    }
+
+    /**
+     * Create a binding without any bound contexts.
+     * @param keepHandles False if only context ids should be stored, then this
+     *        binding does not keep contexts from being garbage collected and
+     *        boundContexts() is not supported.
+     */
+    ContextBinding(boolean keepHandles) {
+        if (keepHandles) {
+            mHandles = new ContextHandle[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * Create a copy of another binding.  Used for copy-on-write by ConcurrentContextMap.
+     * @param other Binding to copy
+     */
+    ContextBinding(ContextBinding<T> other) {
+        mIds = other.mIds.clone();
+        mHandles = other.mHandles != null ? other.mHandles.clone() : null;
+        mValues = other.mValues.clone();
+        mSize = other.mSize;
+    }
     
     /**
      * Bind a specific object instance to a context.  Previous binding
@@ -29,9 +72,29 @@ public class ContextBinding<T> {
      * revert to using the binding of the parent context, use remove() instead.
      * @param context Context to bind to
      * @param ob Object bound to context.
+     * @throws IllegalArgumentException if context is null.  Earlier versions kept
+     *         a binding for the null context, get(null) now always returns null.
      */
     public void set(ContextHandle context,T ob) {
-        mContextMap.put(context,ob);    
+        if (context == null) {
+            throw new IllegalArgumentException("Context can not be null");
+        }
+        int id = context.getId();
+        int slot = indexOf(id);
+        if (slot >= 0) {
+            mValues[slot] = ob;
+            return;
+        }
+        if ((mSize+1)*4 > mIds.length*3) {
+            resize(mIds.length*2);
+        }
+        slot = insertSlot(id);
+        mIds[slot] = id;
+        if (mHandles != null) {
+            mHandles[slot] = context;
+        }
+        mValues[slot] = ob;
+        mSize++;
     }
     
     /**
@@ -41,19 +104,32 @@ public class ContextBinding<T> {
      * @return bound object.  If no bound object return first binding from ancestor context.
      *         Returns null if no binding.
      */
+    @SuppressWarnings("unchecked")
     public T get(ContextHandle context) {
-        if (mContextMap.containsKey(context)) return mContextMap.get(context);
-        if (context == null) return null;
-        return getFirst(context.getAllImplied());
-    }
-    
-    private T getFirst(Set<ContextHandle> contexts) {
-        for (ContextHandle handle: contexts) {
-			if (mContextMap.containsKey(handle)) return mContextMap.get(handle);
-		}
+        if (context == null || mSize == 0) return null;
+        int[] ancestors = context.getAncestorIds();
+        for (int i = 0; i < ancestors.length; i++) {
+            int slot = indexOf(ancestors[i]);
+            if (slot >= 0) return (T) mValues[slot];
+        }
         return null;
     }
 
+    /**
+     * Same as get() but tells apart a null binding from no binding at all.
+     * @param context Context to get binding for
+     * @param notBound Returned if neither the context nor any ancestor is bound.
+     * @return bound object or notBound.
+     */
+    Object resolve(ContextHandle context, Object notBound) {
+        if (context == null || mSize == 0) return notBound;
+        int[] ancestors = context.getAncestorIds();
+        for (int i = 0; i < ancestors.length; i++) {
+            int slot = indexOf(ancestors[i]);
+            if (slot >= 0) return mValues[slot];
+        }
+        return notBound;
+    }
     
     /**
      * Get exact binding - i.e. parent context will never be used.
@@ -61,8 +137,34 @@ public class ContextBinding<T> {
      * @return Bound object or null if no binding in this context.
      */
     
+    @SuppressWarnings("unchecked")
     public T getExact(ContextHandle context) {
-        return mContextMap.get(context);
+        if (context == null) return null;
+        int slot = indexOf(context.getId());
+        return slot >= 0 ? (T) mValues[slot] : null;
+    }
+
+    /**
+     * Check if an object is bound to the context or any of it's ancestors.
+     * @param context Context to check
+     * @return True if bound, else false.
+     */
+    boolean contains(ContextHandle context) {
+        if (context == null || mSize == 0) return false;
+        int[] ancestors = context.getAncestorIds();
+        for (int i = 0; i < ancestors.length; i++) {
+            if (indexOf(ancestors[i]) >= 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if an object is bound to exactly this context.
+     * @param context Context to check
+     * @return True if bound, else false.
+     */
+    boolean containsExact(ContextHandle context) {
+        return context != null && indexOf(context.getId()) >= 0;
     }
     
     /**
@@ -71,7 +173,31 @@ public class ContextBinding<T> {
      * @return Previously bound object or null if no object was bound. 
      */
     public T remove(ContextHandle context) {
-        return mContextMap.remove(context);
+        if (context == null) return null;
+        return removeById(context.getId());
+    }
+
+    /**
+     * Remove binding for a context given it's id, used when the context itself
+     * has been garbage collected.
+     * @param id Id of context
+     * @return Previously bound object or null if no object was bound.
+     */
+    @SuppressWarnings("unchecked")
+    T removeById(int id) {
+        int slot = indexOf(id);
+        if (slot < 0) return null;
+        T old = (T) mValues[slot];
+        removeSlot(slot);
+        return old;
+    }
+
+    /**
+     * Get number of contexts that have actual bindings.
+     * @return number of bound contexts
+     */
+    int size() {
+        return mSize;
     }
     
     /**
@@ -80,6 +206,85 @@ public class ContextBinding<T> {
      */
     
     protected Set<ContextHandle> boundContexts() {
-        return Collections.unmodifiableSet(mContextMap.keySet());
+        if (mHandles == null) {
+            throw new UnsupportedOperationException("Bound contexts are not kept");
+        }
+        Set<ContextHandle> result = new HashSet<ContextHandle>();
+        for (ContextHandle handle: mHandles) {
+            if (handle != null) {
+                result.add(handle);
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    private static int home(int id, int mask) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int indexOf(int id) {
+        int[] ids = mIds;
+        int mask = ids.length-1;
+        for (int i = home(id,mask);; i = (i+1) & mask) {
+            int current = ids[i];
+            if (current == id) return i;
+            if (current == 0) return -1;
+        }
+    }
+
+    private int insertSlot(int id) {
+        int mask = mIds.length-1;
+        int i = home(id,mask);
+        while (mIds[i] != 0) {
+            i = (i+1) & mask;
+        }
+        return i;
+    }
+
+    private void resize(int capacity) {
+        int[] oldIds = mIds;
+        ContextHandle[] oldHandles = mHandles;
+        Object[] oldValues = mValues;
+        mIds = new int[capacity];
+        mHandles = oldHandles != null ? new ContextHandle[capacity] : null;
+        mValues = new Object[capacity];
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != 0) {
+                int slot = insertSlot(oldIds[i]);
+                mIds[slot] = oldIds[i];
+                if (mHandles != null) {
+                    mHandles[slot] = oldHandles[i];
+                }
+                mValues[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Clear slot and shift following entries of the probe sequence back so
+     * lookups never stop early at the freed slot.
+     */
+    private void removeSlot(int slot) {
+        int mask = mIds.length-1;
+        int free = slot;
+        for (int i = (slot+1) & mask; mIds[i] != 0; i = (i+1) & mask) {
+            int h = home(mIds[i],mask);
+            boolean reachable = free <= i ? (free < h && h <= i) : (free < h || h <= i);
+            if (!reachable) {
+                mIds[free] = mIds[i];
+                if (mHandles != null) {
+                    mHandles[free] = mHandles[i];
+                }
+                mValues[free] = mValues[i];
+                free = i;
+            }
+        }
+        mIds[free] = 0;
+        if (mHandles != null) {
+            mHandles[free] = null;
+        }
+        mValues[free] = null;
+        mSize--;
     }
 }
@@ -0,0 +1,73 @@
+package com.faradice.faraframe.context;
+
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.Set;
+
+/**
+ * <H1> ContextChangeEvent - bindings changed in one context. </H1>
+ *
+ * Describes all changes of one ContextMap or ContextList in one context during a
+ * batch.  The source is the modified map or list.
+ *
+ * Contexts do not know their children, so the descendants of the modified context
+ * are not listed.  Use affects() to test whether a change is visible from a given
+ * context, which is true for the modified context and all it's descendants.
+ */
+public class ContextChangeEvent extends EventObject {
+    private static final long serialVersionUID = 1L;
+
+    private final transient ContextHandle mContext;
+    private final transient Set<Object> mKeys;
+
+    /**
+     * @param source Modified map or list
+     * @param context Context whose bindings changed
+     * @param keys Keys whose bindings changed, empty for a list.
+     */
+    public ContextChangeEvent(Object source, ContextHandle context, Set<Object> keys) {
+        super(source);
+        mContext = context;
+        mKeys = Collections.unmodifiableSet(keys);
+    }
+
+    /**
+     * Get the context whose bindings changed.
+     * @return the context
+     */
+    public ContextHandle getContext() {
+        return mContext;
+    }
+
+    /**
+     * Get the keys bound, rebound or removed in the context.
+     * @return the keys, empty if the source is a ContextList.
+     */
+    public Set<Object> getKeys() {
+        return mKeys;
+    }
+
+    /**
+     * Check if values seen from the specified context may have changed.
+     * @param handle Context to check
+     * @return True if handle is the modified context or one of it's descendants.
+     */
+    public boolean affects(ContextHandle handle) {
+        return handle.implies(mContext);
+    }
+
+    /**
+     * Check if the value of key seen from the specified context may have changed.
+     * @param handle Context to check
+     * @param key Key to check
+     * @return True if key changed and handle is the modified context or one of it's descendants.
+     */
+    public boolean affects(ContextHandle handle, Object key) {
+        return mKeys.contains(key) && handle.implies(mContext);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[source=" + getSource() + ",keys=" + mKeys + "]";
+    }
+}
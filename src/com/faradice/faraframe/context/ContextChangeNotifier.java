@@ -0,0 +1,225 @@
+package com.faradice.faraframe.context;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <H1> ContextChangeNotifier - batched change notifications. </H1>
+ *
+ * Collects changes from any number of ContextMaps and ContextLists and delivers
+ * them to IContextChangeListeners on an executor:
+ *
+ * ContextChangeNotifier notifier = new ContextChangeNotifier(executor,50);
+ * notifier.addListener(cacheInvalidator);
+ * settings.setChangeNotifier(notifier);
+ *
+ * Changes are coalesced into one ContextChangeEvent per map or list and context
+ * until they are delivered.  They are delivered:
+ *
+ * - when the outermost commit() is called, if changes were made between begin() and
+ *   commit().  Nothing is delivered while a transaction is open.
+ * - otherwise after the time window has passed since the first undelivered change,
+ *   or as soon as the executor runs the delivery if the window is 0.
+ *
+ * Batches are delivered one at a time and in order, also on executors with
+ * many threads.  Batches the executor rejects are delivered on a timer thread
+ * shared by all notifiers.  Contexts of undelivered changes are held strongly.
+ *
+ */
+public class ContextChangeNotifier {
+    private static ScheduledExecutorService sTimer;
+
+    private final Executor mExecutor;
+    private final long mWindowMillis;
+    private final List<IContextChangeListener> mListeners = new CopyOnWriteArrayList<IContextChangeListener>();
+
+    /**
+     * Undelivered changes.
+     * Key: Map or list, Value: (Key: Context, Value: changed keys)
+     */
+    private Map<Object,Map<ContextHandle,Set<Object>>> mPending = new LinkedHashMap<Object,Map<ContextHandle,Set<Object>>>();
+    /**
+     * Number of begin() calls not yet committed.
+     */
+    private int mDepth;
+    /**
+     * True from the time a delivery is scheduled until it has completed.
+     */
+    private boolean mScheduled;
+
+    private final Runnable mDelivery = new Runnable() {
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * Create notifier delivering changes as soon as the executor runs the delivery.
+     * Changes made before that are delivered in the same batch.
+     * @param executor Executor running the listeners
+     */
+    public ContextChangeNotifier(Executor executor) {
+        this(executor,0);
+    }
+
+    /**
+     * Create notifier delivering changes made within a time window as one batch.
+     * @param executor Executor running the listeners
+     * @param windowMillis Time from the first undelivered change until delivery.
+     */
+    public ContextChangeNotifier(Executor executor, long windowMillis) {
+        mExecutor = executor;
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Add listener for all maps and lists using this notifier.
+     * @param listener
+     */
+    public void addListener(IContextChangeListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Remove listener.
+     * @param listener
+     */
+    public void removeListener(IContextChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Start a transaction.  Changes are held back until the matching commit().
+     * Transactions nest and are shared by all threads using this notifier.
+     */
+    public synchronized void begin() {
+        mDepth++;
+    }
+
+    /**
+     * End a transaction.  The outermost commit() schedules delivery of all changes
+     * made since the transaction started, and any held back earlier.
+     * @throws IllegalStateException if there is no matching begin().
+     */
+    public synchronized void commit() {
+        if (mDepth == 0) {
+            throw new IllegalStateException("commit() without begin()");
+        }
+        if (--mDepth == 0) {
+            schedule();
+        }
+    }
+
+    /**
+     * Record change of bindings.
+     * @param source Modified map or list
+     * @param handle Context whose bindings changed
+     * @param keys Keys whose bindings changed, empty for a list.
+     */
+    synchronized void changed(Object source, ContextHandle handle, Collection<?> keys) {
+        Map<ContextHandle,Set<Object>> contexts = mPending.get(source);
+        if (contexts == null) {
+            contexts = new LinkedHashMap<ContextHandle,Set<Object>>();
+            mPending.put(source,contexts);
+        }
+        Set<Object> changedKeys = contexts.get(handle);
+        if (changedKeys == null) {
+            changedKeys = new LinkedHashSet<Object>();
+            contexts.put(handle,changedKeys);
+        }
+        changedKeys.addAll(keys);
+        if (mDepth == 0) {
+            schedule();
+        }
+    }
+
+    /**
+     * Schedule delivery unless one is already scheduled or running.  The running
+     * delivery schedules the next one when done.  If the executor rejects the
+     * delivery, e.g. because it is shut down, the timer thread delivers instead.
+     */
+    private void schedule() {
+        if (mScheduled || mPending.isEmpty()) return;
+        mScheduled = true;
+        if (mWindowMillis > 0) {
+            timer().schedule(new Runnable() {
+                public void run() {
+                    try {
+                        mExecutor.execute(mDelivery);
+                    } catch (RejectedExecutionException ex) {
+                        deliver();
+                    }
+                }
+            },mWindowMillis,TimeUnit.MILLISECONDS);
+        } else {
+            try {
+                mExecutor.execute(mDelivery);
+            } catch (RejectedExecutionException ex) {
+                // Called holding the lock, listeners must not run here.
+                timer().execute(mDelivery);
+            }
+        }
+    }
+
+    private void deliver() {
+        List<ContextChangeEvent> events = new ArrayList<ContextChangeEvent>();
+        synchronized (this) {
+            if (mDepth > 0) {
+                // A transaction was opened after scheduling, commit() schedules again.
+                mScheduled = false;
+                return;
+            }
+            for (Map.Entry<Object,Map<ContextHandle,Set<Object>>> source: mPending.entrySet()) {
+                for (Map.Entry<ContextHandle,Set<Object>> context: source.getValue().entrySet()) {
+                    events.add(new ContextChangeEvent(source.getKey(),context.getKey(),context.getValue()));
+                }
+            }
+            mPending = new LinkedHashMap<Object,Map<ContextHandle,Set<Object>>>();
+        }
+        try {
+            List<ContextChangeEvent> batch = Collections.unmodifiableList(events);
+            for (IContextChangeListener listener: mListeners) {
+                try {
+                    listener.contextsChanged(batch);
+                } catch (RuntimeException ex) {
+                    // Other listeners must still see the batch.
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread,ex);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                mScheduled = false;
+                if (mDepth == 0) {
+                    schedule();
+                }
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (sTimer == null) {
+            sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r,"ContextChangeNotifier-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+}
@@ -1,9 +1,14 @@
 package com.faradice.faraframe.context;
 
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <H1> ContextHandle.</H1>
@@ -61,9 +66,43 @@ import java.util.Set;
  * @version  $Id: ContextHandle.java,v 1.4 2008/06/26 12:50:10 gudmfr Exp $
  */
 public class ContextHandle {
-    private Set<ContextHandle> mAllImplied;
-	private Set<ContextHandle> mImplied = new LinkedHashSet<ContextHandle>();
-	private ClassLoader classLoader;
+    /**
+     * Source of context ids.  Id 0 is never handed out so it can be used as
+     * an empty marker in id based tables.  Negative once all ids are used.
+     */
+    private static final AtomicInteger sNextId = new AtomicInteger(1);
+
+    /**
+     * Number of contexts that have been used as parents, see mParentIndex.
+     */
+    private static int sParentCount;
+
+    private final int mId;
+    /**
+     * Dense index among contexts that are parents of some other context, -1 until
+     * this context gets it's first child.  Reachability is encoded over these indexes
+     * rather than ids, since contexts without children never need a bit.
+     */
+    private volatile int mParentIndex = -1;
+    /**
+     * All contexts implied by this context, this context first and then ancestors breadth first.
+     */
+    private final ContextHandle[] mAncestors;
+    /**
+     * Ids of mAncestors, in the same order.
+     */
+    private final int[] mAncestorIds;
+    /**
+     * Parent indexes of all ancestors (excluding this context) as a bitset, where
+     * word 0 holds indexes starting at 64*mBitsBase.  Null when the indexes are too
+     * sparse for a bitset, then mSortedIndexes holds them instead.
+     */
+    private final long[] mAncestorBits;
+    private final int mBitsBase;
+    private final int[] mSortedIndexes;
+    private final Set<ContextHandle> mAllImplied = new ImpliedSet();
+	private final Set<ContextHandle> mImplied = new LinkedHashSet<ContextHandle>();
+	private final ClassLoader classLoader;
     
     private ContextHandle(ContextHandle[] implied, ClassLoader cl) {
         if (implied != null) {
@@ -72,6 +111,99 @@ public class ContextHandle {
             }
         }
         classLoader = cl;
+        mId = nextId();
+
+        // Union of parents and their ancestors, one word-wise OR per parent.
+        int minWord = Integer.MAX_VALUE;
+        int maxWord = -1;
+        for (ContextHandle parent: mImplied) {
+            int word = assignParentIndex(parent) >>> 6;
+            minWord = Math.min(minWord,Math.min(word,parent.firstWord()));
+            maxWord = Math.max(maxWord,Math.max(word,parent.lastWord()));
+        }
+        long[] bits = new long[maxWord < 0 ? 0 : maxWord-minWord+1];
+        for (ContextHandle parent: mImplied) {
+            int index = parent.mParentIndex;
+            bits[(index >>> 6)-minWord] |= 1L << index;
+            parent.addAncestorBits(bits,minWord);
+        }
+
+        // Order ancestors breadth first, using a copy of the bitset to skip those already seen.
+        long[] unseen = bits.clone();
+        List<ContextHandle> ordered = new ArrayList<ContextHandle>();
+        ordered.add(this);
+        for (int i = 0; i < ordered.size(); i++) {
+            for (ContextHandle parent: ordered.get(i).mImplied) {
+                int index = parent.mParentIndex;
+                int word = (index >>> 6)-minWord;
+                if ((unseen[word] & (1L << index)) != 0) {
+                    unseen[word] &= ~(1L << index);
+                    ordered.add(parent);
+                }
+            }
+        }
+        mAncestors = ordered.toArray(new ContextHandle[ordered.size()]);
+        mAncestorIds = new int[mAncestors.length];
+        for (int i = 0; i < mAncestors.length; i++) {
+            mAncestorIds[i] = mAncestors[i].mId;
+        }
+
+        if (bits.length <= Math.max(2,mAncestors.length-1)) {
+            mAncestorBits = bits;
+            mBitsBase = minWord;
+            mSortedIndexes = null;
+        } else {
+            mAncestorBits = null;
+            mBitsBase = 0;
+            mSortedIndexes = new int[mAncestors.length-1];
+            for (int i = 1; i < mAncestors.length; i++) {
+                mSortedIndexes[i-1] = mAncestors[i].mParentIndex;
+            }
+            Arrays.sort(mSortedIndexes);
+        }
+    }
+    
+    private static synchronized int assignParentIndex(ContextHandle handle) {
+        if (handle.mParentIndex < 0) {
+            handle.mParentIndex = sParentCount++;
+        }
+        return handle.mParentIndex;
+    }
+    
+    /**
+     * @return First bitset word holding an ancestor index, Integer.MAX_VALUE if no ancestors.
+     */
+    private int firstWord() {
+        if (mAncestorBits != null) {
+            return mAncestorBits.length > 0 ? mBitsBase : Integer.MAX_VALUE;
+        }
+        return mSortedIndexes[0] >>> 6;
+    }
+    
+    /**
+     * @return Last bitset word holding an ancestor index, -1 if no ancestors.
+     */
+    private int lastWord() {
+        if (mAncestorBits != null) {
+            return mAncestorBits.length > 0 ? mBitsBase+mAncestorBits.length-1 : -1;
+        }
+        return mSortedIndexes[mSortedIndexes.length-1] >>> 6;
+    }
+    
+    /**
+     * Set bits for all ancestors of this context in a bitset starting at word base.
+     */
+    private void addAncestorBits(long[] bits, int base) {
+        if (mAncestorBits != null) {
+            int offset = mBitsBase-base;
+            for (int i = 0; i < mAncestorBits.length; i++) {
+                bits[offset+i] |= mAncestorBits[i];
+            }
+        } else {
+            for (int index: mSortedIndexes) {
+                bits[(index >>> 6)-base] |= 1L << index;
+            }
+        }
     }
     
     /**
@@ -122,20 +254,49 @@ public class ContextHandle {
      * @return
      */
     protected Set<ContextHandle> getAllImplied() {
-        if (mAllImplied == null) {
-            mAllImplied = new LinkedHashSet<ContextHandle>();
-            LinkedList<ContextHandle> toProcess = new LinkedList<ContextHandle>();
-            toProcess.add(this);
-            while (toProcess.size() >0) {
-                ContextHandle handle =  toProcess.remove(0);
-                if (! mAllImplied.contains(handle)) {
-                    mAllImplied.add(handle);
-                    toProcess.addAll(handle.getDirectlyImplied());
-                }
+        return mAllImplied;
+    }
+    
+    /**
+     * Hand out the next context id.
+     * @throws IllegalStateException if Integer.MAX_VALUE contexts have been created
+     */
+    private static int nextId() {
+        int id;
+        do {
+            id = sNextId.get();
+            if (id <= 0) {
+                throw new IllegalStateException("Context ids exhausted, " + Integer.MAX_VALUE + " contexts created");
             }
-            
-        }
-        return Collections.unmodifiableSet(mAllImplied);
+        } while (!sNextId.compareAndSet(id,id+1));
+        return id;
+    }
+
+    /**
+     * Get the dense id of this context.  Ids are unique for the lifetime of the VM,
+     * creating a context fails once Integer.MAX_VALUE contexts have been created.
+     * @return the id of this context, never 0.
+     */
+    int getId() {
+        return mId;
+    }
+    
+    /**
+     * Get this context and all ancestors in resolution order.  The array
+     * is shared and must not be modified.
+     * @return ancestors, this context first.
+     */
+    ContextHandle[] getAncestors() {
+        return mAncestors;
+    }
+    
+    /**
+     * Get ids of this context and all ancestors in resolution order.  The array
+     * is shared and must not be modified.
+     * @return ancestor ids, this context first.
+     */
+    int[] getAncestorIds() {
+        return mAncestorIds;
     }
     
     /**
@@ -152,7 +313,35 @@ public class ContextHandle {
      * @return True if handle is ancestor of this context, false otherwise.
      */
     public boolean implies(ContextHandle handle) {
-        return getAllImplied().contains(handle);
+        if (handle == this) return true;
+        if (handle == null) return false;
+        int index = handle.mParentIndex;
+        if (index < 0) return false;
+        if (mAncestorBits != null) {
+            int word = (index >>> 6)-mBitsBase;
+            return word >= 0 && word < mAncestorBits.length && (mAncestorBits[word] & (1L << index)) != 0;
+        }
+        return Arrays.binarySearch(mSortedIndexes,index) >= 0;
+    }
+    
+    /**
+     * Read only view of mAncestors, membership is checked with implies().
+     */
+    private class ImpliedSet extends AbstractSet<ContextHandle> {
+        @Override
+        public Iterator<ContextHandle> iterator() {
+            return Arrays.asList(mAncestors).iterator();
+        }
+
+        @Override
+        public int size() {
+            return mAncestors.length;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof ContextHandle && implies((ContextHandle) o);
+        }
     }
     
 }
@@ -0,0 +1,113 @@
+package com.faradice.faraframe.context;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <H1> ContextKey - interned, typed key for ContextKeyMap. </H1>
+ *
+ * A ContextKey is created once for each name and given a dense symbol number.
+ * Lookups in a ContextKeyMap through the key use the symbol as an array index, so
+ * the name is never hashed or compared again.  The value type is part of the key,
+ * which makes lookups type safe without casts:
+ *
+ * static final ContextKey<DatabasePool> POOL = ContextKey.forName("db.pool",DatabasePool.class);
+ * ...
+ * DatabasePool pool = settings.get(ctx,POOL);
+ *
+ * Keys are never released, so they should be created for a fixed set of names
+ * rather than from arbitrary input.
+ *
+ * @param <V> type of values bound to the key.
+ */
+public final class ContextKey<V> {
+    private static final ConcurrentHashMap<String,ContextKey<?>> sKeys = new ConcurrentHashMap<String,ContextKey<?>>();
+    /**
+     * Keys indexed by symbol, only modified while holding the class lock.
+     */
+    private static volatile ContextKey<?>[] sSymbols = new ContextKey<?>[64];
+    private static int sSymbolCount;
+
+    private final String mName;
+    private final Class<V> mType;
+    private final int mSymbol;
+
+    private ContextKey(String name, Class<V> type, int symbol) {
+        mName = name;
+        mType = type;
+        mSymbol = symbol;
+    }
+
+    /**
+     * Get the key for the specified name, creating it on first use.
+     * @param name Name of key
+     * @param type Type of values bound to the key
+     * @return the key, the same instance for all calls with the same name.
+     * @throws IllegalArgumentException if the name has already been used with another type.
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> ContextKey<V> forName(String name, Class<V> type) {
+        ContextKey<?> key = sKeys.get(name);
+        if (key == null) {
+            key = create(name,type);
+        }
+        if (key.mType != type) {
+            throw new IllegalArgumentException("Key " + name + " has type " + key.mType.getName() + ", not " + type.getName());
+        }
+        return (ContextKey<V>) key;
+    }
+
+    private static synchronized ContextKey<?> create(String name, Class<?> type) {
+        ContextKey<?> key = sKeys.get(name);
+        if (key == null) {
+            key = newKey(name,type,sSymbolCount);
+            ContextKey<?>[] symbols = sSymbols;
+            if (sSymbolCount == symbols.length) {
+                symbols = Arrays.copyOf(symbols,symbols.length*2);
+            }
+            symbols[sSymbolCount++] = key;
+            sSymbols = symbols;
+            sKeys.put(name,key);
+        }
+        return key;
+    }
+
+    private static <V> ContextKey<V> newKey(String name, Class<V> type, int symbol) {
+        return new ContextKey<V>(name,type,symbol);
+    }
+
+    /**
+     * Get key from it's symbol.
+     * @param symbol Symbol of an existing key
+     * @return the key
+     */
+    static ContextKey<?> forSymbol(int symbol) {
+        return sSymbols[symbol];
+    }
+
+    /**
+     * @return the name of this key
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return the type of values bound to this key
+     */
+    public Class<V> getType() {
+        return mType;
+    }
+
+    /**
+     * @return the dense symbol number of this key
+     */
+    int getSymbol() {
+        return mSymbol;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,187 @@
+package com.faradice.faraframe.context;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <H1> ContextKeyMap - ContextMap keyed by interned ContextKey symbols.</H1>
+ *
+ * Behaves like ContextMap but keys are ContextKey instances.  Bindings are held
+ * in an array indexed by key symbol, so a lookup is an array index followed by
+ * the usual resolution through parent contexts.  Since each key carries the type
+ * of it's values, get() needs no cast.
+ *
+ * The keys bound in each context are kept as a bitset of symbols, so keySet() and
+ * removeAll() only visit keys that are actually bound in the context's ancestry.
+ *
+ * @see ContextKey
+ */
+public class ContextKeyMap {
+    private static final ContextBinding<?>[] NO_BINDINGS = new ContextBinding<?>[0];
+
+    /**
+     * Bindings indexed by key symbol, null for keys that are not bound.
+     */
+    private ContextBinding<?>[] mBindings = NO_BINDINGS;
+
+    /**
+     * Reverse index of mBindings.
+     * Key: Context, Value: symbols of keys bound in exactly that context.
+     */
+    private ContextBinding<BitSet> mBoundSymbols = new ContextBinding<BitSet>();
+
+    /**
+     * Bind value to key in specified context.  The same key-value binding
+     * will be visible in child contexts.  Note that null values can be bound
+     * also.  To remove binding use remove().
+     * @param handle
+     * @param key
+     * @param value
+     */
+    public <V> void put(ContextHandle handle,ContextKey<V> key,V value) {
+        int symbol = key.getSymbol();
+        if (symbol >= mBindings.length) {
+            mBindings = Arrays.copyOf(mBindings,Math.max(symbol+1,mBindings.length*2));
+        }
+        ContextBinding<V> binding = binding(symbol);
+        if (binding == null) {
+            binding = new ContextBinding<V>();
+            mBindings[symbol] = binding;
+        }
+        binding.set(handle,value);
+        BitSet symbols = mBoundSymbols.getExact(handle);
+        if (symbols == null) {
+            symbols = new BitSet();
+            mBoundSymbols.set(handle,symbols);
+        }
+        symbols.set(symbol);
+    }
+
+    /**
+     * Get value bound to key in specified context.   If no binding exists in
+     * parent binding (if any) will be used.
+     * @param handle
+     * @param key
+     * @return the value
+     */
+    public <V> V get(ContextHandle handle,ContextKey<V> key) {
+        ContextBinding<V> binding = binding(key.getSymbol());
+        if (binding == null) return null;
+        return binding.get(handle);
+    }
+
+    /**
+     * Get value bound to key in the current context, see CurrentContext.
+     * @param key
+     * @return the value
+     * @throws IllegalStateException if there is no current context.
+     */
+    public <V> V get(ContextKey<V> key) {
+        return get(CurrentContext.require(),key);
+    }
+
+    /**
+     * Get value bound to key in exactly this context.  Parent context is
+     * not used.
+     * @param handle
+     * @param key
+     * @return  the value
+     */
+    public <V> V getExact(ContextHandle handle,ContextKey<V> key) {
+        ContextBinding<V> binding = binding(key.getSymbol());
+        if (binding == null) return null;
+        return binding.getExact(handle);
+    }
+
+    /**
+     * Check if specified key is bound.  Parent context is used if no exact
+     * binding exists.
+     * @param handle
+     * @param key
+     * @return  True if key is bound, else false
+     */
+    public boolean containsKey(ContextHandle handle,ContextKey<?> key) {
+        ContextBinding<?> binding = binding(key.getSymbol());
+        return binding != null && binding.contains(handle);
+    }
+
+    /**
+     * Check if specified key is bound.  Parent context is not used.
+     * @param handle
+     * @param key
+     * @return True if key is bound, else false
+     */
+    public boolean containsKeyExact(ContextHandle handle,ContextKey<?> key) {
+        ContextBinding<?> binding = binding(key.getSymbol());
+        return binding != null && binding.containsExact(handle);
+    }
+
+    /**
+     * Remove binding for key in this context.  Subsequent calls to get() will
+     * always use parent context if available.
+     * @param handle
+     * @param key
+     */
+    public void remove(ContextHandle handle,ContextKey<?> key) {
+        int symbol = key.getSymbol();
+        ContextBinding<?> binding = binding(symbol);
+        if (binding != null && binding.containsExact(handle)) {
+            binding.remove(handle);
+            if (binding.size() == 0) {
+                mBindings[symbol] = null;
+            }
+            BitSet symbols = mBoundSymbols.getExact(handle);
+            symbols.clear(symbol);
+            if (symbols.isEmpty()) {
+                mBoundSymbols.remove(handle);
+            }
+        }
+    }
+
+    /**
+     * Remove all bindings for specified context.  This is the same as calling
+     * remove() on each key in keySet()
+     * @param handle
+     */
+    public void removeAll(ContextHandle handle) {
+        BitSet symbols = mBoundSymbols.remove(handle);
+        if (symbols == null) return;
+        for (int symbol = symbols.nextSetBit(0); symbol >= 0; symbol = symbols.nextSetBit(symbol+1)) {
+            ContextBinding<?> binding = mBindings[symbol];
+            binding.remove(handle);
+            if (binding.size() == 0) {
+                mBindings[symbol] = null;
+            }
+        }
+    }
+
+    /**
+     *  Get the keyset for specified context.  This will return all keys bound
+     * in the contex or any parent context. The set cannot be modified.
+     * @param handle
+     * @return the keyset
+     */
+    public Set<ContextKey<?>> keySet(ContextHandle handle) {
+        BitSet all = new BitSet();
+        for (ContextHandle h: handle.getAncestors()) {
+            BitSet symbols = mBoundSymbols.getExact(h);
+            if (symbols != null) {
+                all.or(symbols);
+            }
+        }
+        Set<ContextKey<?>> result = new HashSet<ContextKey<?>>();
+        for (int symbol = all.nextSetBit(0); symbol >= 0; symbol = all.nextSetBit(symbol+1)) {
+            result.add(ContextKey.forSymbol(symbol));
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> ContextBinding<V> binding(int symbol) {
+        ContextBinding<?>[] bindings = mBindings;
+        return symbol < bindings.length ? (ContextBinding<V>) bindings[symbol] : null;
+    }
+}
@@ -1,44 +1,88 @@
 package com.faradice.faraframe.context;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.Spliterators;
 
 /**
  * <H1> ContextList - Context based list. </H1>
- * 
+ *
  * This behaves similar to standard list except that values are added, removed
  * and accessed based on Context.
- * 
+ *
  * Values can be added in any context, and will be visible in that context and all
  * child contexts.  In any given context, only values added in exactly that
- * context can be removed. 
- * 
+ * context can be removed.
+ *
+ * Values of each context are kept in arrays that are replaced, never modified, when
+ * values are added or removed.  This makes add() and remove() proportional to the
+ * number of values in the context, but allows view() to return snapshots that share
+ * the arrays instead of copying values.
+ *
+ * A list created with weak contexts does not keep contexts from being garbage
+ * collected.  Values added in collected contexts are removed on later modifications.
+ *
  * <p> Author Vilmundur Palmason
  * <p> Created Nov 6, 2003
  * @version  $Id: ContextList.java,v 1.3 2008/06/26 12:50:10 gudmfr Exp $
- * @param <T> 
+ * @param <T>
  */
 public class ContextList<T> {
 
+    private static final Object[] EMPTY = new Object[0];
+
+    /**
+     * Contains actual values, one array for each context.
+     * Key: Context, Value: Object[] of values added in exactly that context.
+     */
+    private ContextBinding<Object[]> mLists;
+
+    /**
+     * Views returned by view() for contexts that hold values themselves, dropped
+     * whenever a value is added or removed.  Views of other contexts are not cached,
+     * so querying many short lived contexts does not grow these bindings.
+     */
+    private ContextBinding<ListView<T>> mViews;
+    private ContextBinding<ListView<T>> mReverseViews;
+
+    /**
+     * Tracks contexts when they are held weakly, else null.
+     */
+    private ContextReclaimer mReclaimer;
+
     /**
-     * Contains actual value lists, one for each context.
-     * Key: Context, Value: List<T>
+     * Receives changes when set, see setChangeNotifier().
      */
-    private Map<ContextHandle,List<T>> mLists;
-    
+    private ContextChangeNotifier mNotifier;
+
 	/**
 	 * Constructor for ContextList.
-	 * 
+	 *
 	 */
 	public ContextList() {
-		mLists = new HashMap<ContextHandle,List<T>>();
+		this(false);
 	}
 
+    /**
+     * Constructor for ContextList, optionally holding contexts weakly.  With weak
+     * contexts, values do not keep their context from being garbage collected.
+     * Values of collected contexts are removed in batches by later calls to add()
+     * or remove().  See getReclaimer().
+     * @param weakContexts True to hold contexts weakly.
+     */
+    public ContextList(boolean weakContexts) {
+        if (weakContexts) {
+            mReclaimer = new ContextReclaimer();
+        }
+		mLists = new ContextBinding<Object[]>(!weakContexts);
+    }
+
     /**
      * Add new object for this list visible in the specified context - means that object
      * will be part of this list when queried by the context or any descendants.
@@ -46,60 +90,277 @@ public class ContextList<T> {
      * @param o Object to add to list.
      */
     public void add(ContextHandle handle,T o) {
-        getExactList(handle).add(o);
+        reclaimContexts();
+        Object[] values = mLists.getExact(handle);
+        if (values == null) {
+            values = EMPTY;
+            if (mReclaimer != null) {
+                mReclaimer.track(handle);
+            }
+        }
+        Object[] newValues = Arrays.copyOf(values,values.length+1);
+        newValues[values.length] = o;
+        mLists.set(handle,newValues);
+        dropViews();
+        if (mNotifier != null) {
+            mNotifier.changed(this,handle,Collections.emptySet());
+        }
     }
 
     /**
-     * Remove object from list for specified context.   Object is removed only 
+     * Remove object from list for specified context.   Object is removed only
      * if it was added using the specified context, it will not be removed from parent lists.
      * @param handle Context to use when removing.
      * @param o Object to remove from list.
      */
     public void remove(ContextHandle handle,T o) {
-        getExactList(handle).remove(o);
+        reclaimContexts();
+        Object[] values = mLists.getExact(handle);
+        if (values == null) return;
+        for (int i = 0; i < values.length; i++) {
+            if (o == null ? values[i] == null : o.equals(values[i])) {
+                if (values.length == 1) {
+                    mLists.remove(handle);
+                    if (mReclaimer != null) {
+                        mReclaimer.untrack(handle);
+                    }
+                } else {
+                    Object[] newValues = new Object[values.length-1];
+                    System.arraycopy(values,0,newValues,0,i);
+                    System.arraycopy(values,i+1,newValues,i,values.length-i-1);
+                    mLists.set(handle,newValues);
+                }
+                dropViews();
+                if (mNotifier != null) {
+                    mNotifier.changed(this,handle,Collections.emptySet());
+                }
+                return;
+            }
+        }
     }
-    
-	private List<T> getExactList(ContextHandle handle) {
-        List<T> list = mLists.get(handle);
-        if (list == null) {
-            list = new ArrayList<T>();
-            mLists.put(handle,list);
+
+    private void dropViews() {
+        mViews = null;
+        mReverseViews = null;
+    }
+
+    /**
+     * Remove values of contexts that have been garbage collected, if contexts are held weakly.
+     */
+    private void reclaimContexts() {
+        if (mReclaimer == null) return;
+        int[] ids = mReclaimer.poll();
+        if (ids == null) return;
+        int bindings = 0;
+        for (int id: ids) {
+            Object[] values = mLists.removeById(id);
+            if (values != null) {
+                bindings += values.length;
+            }
+            if (mViews != null) {
+                mViews.removeById(id);
+            }
+            if (mReverseViews != null) {
+                mReverseViews.removeById(id);
+            }
         }
-        return list;
-	}
+        mReclaimer.reclaimed(ids.length,bindings);
+    }
+
+    /**
+     * Get reclamation statistics for weakly held contexts.
+     * @return the reclaimer, null unless this list was created with weak contexts.
+     */
+    public ContextReclaimer getReclaimer() {
+        return mReclaimer;
+    }
+
+    /**
+     * Report changes made by add() and remove() to a notifier, which delivers them to
+     * it's listeners in batches.  Events for a list carry no keys.
+     * @param notifier The notifier, null to stop reporting changes.
+     */
+    public void setChangeNotifier(ContextChangeNotifier notifier) {
+        mNotifier = notifier;
+    }
+
+    /**
+     * Get the notifier receiving changes of this list.
+     * @return the notifier, null if none is set.
+     */
+    public ContextChangeNotifier getChangeNotifier() {
+        return mNotifier;
+    }
 
     /**
      * Return a new list object containing all visible items from parent context
      * as well as the passed context.  Normally, the parent contexts are search breadth first,
      * the first value from the topmost context are first, last value from the passed context
      * is last.  If reverse is true, the list order is exactly reversed.
-     * Any changes to the returned List do not affect the underlying data.  
+     * Any changes to the returned List do not affect the underlying data.
      * @param handle Context to get list from
      * @param reverse If returned list is to be in reverse order.
      * @return List<T> of all objects visible from specific context.
      */
 
+    @SuppressWarnings("unchecked")
     public List<T> toList(ContextHandle handle,boolean reverse) {
-        final Set<ContextHandle> allContexts;
+        List<T> list = new ArrayList<T>();
         if (handle == null) {
-        	allContexts = new HashSet<ContextHandle>();
-        } else {
-        	allContexts = handle.getAllImplied();
-        }
-        
-        List<T> result = new LinkedList<T>();
-        for (ContextHandle h : allContexts) {
-            List<T> l = getExactList(h);
+            return list;
+        }
+        for (Object[] values: segments(handle,reverse)) {
             if (reverse) {
-                for (int i=l.size()-1;i>=0;i--) {
-                    result.add(l.get(i));
+                for (int i = values.length-1; i >= 0; i--) {
+                    list.add((T) values[i]);
                 }
             } else {
-                result.addAll(0,l);
+                list.addAll((List<T>) Arrays.asList(values));
             }
-		}
-        return result;
+        }
+        return list;
+    }
+
+    /**
+     * Return a read only view of all visible items, in the same order as toList().
+     * The view is a snapshot, later changes to this ContextList are not visible in
+     * it.  Values are not copied when the view is created, but the first iteration
+     * flattens them into an array that is reused by later iterations.  For a context
+     * that holds values itself, the same view is returned until this ContextList is
+     * modified.
+     * @param handle Context to get list from
+     * @param reverse If returned list is to be in reverse order.
+     * @return Random access List<T> of all objects visible from specific context.
+     */
+    public List<T> view(ContextHandle handle,boolean reverse) {
+        if (handle == null) {
+            return new ListView<T>(new Object[0][],reverse);
+        }
+        if (mLists.getExact(handle) == null) {
+            // Only contexts holding values are cached, they are bounded by mLists.
+            return new ListView<T>(segments(handle,reverse),reverse);
+        }
+        ContextBinding<ListView<T>> views = reverse ? mReverseViews : mViews;
+        if (views == null) {
+            views = new ContextBinding<ListView<T>>(mReclaimer == null);
+            if (reverse) {
+                mReverseViews = views;
+            } else {
+                mViews = views;
+            }
+        }
+        ListView<T> view = views.getExact(handle);
+        if (view == null) {
+            view = new ListView<T>(segments(handle,reverse),reverse);
+            views.set(handle,view);
+        }
+        return view;
+    }
+
+    /**
+     * Get the value arrays visible from handle, topmost context first unless reversed.
+     */
+    private Object[][] segments(ContextHandle handle,boolean reverse) {
+        ContextHandle[] ancestors = handle.getAncestors();
+        List<Object[]> segments = new ArrayList<Object[]>(ancestors.length);
+        for (int i = 0; i < ancestors.length; i++) {
+            Object[] values = mLists.getExact(ancestors[reverse ? i : ancestors.length-1-i]);
+            if (values != null) {
+                segments.add(values);
+            }
+        }
+        return segments.toArray(new Object[segments.size()][]);
     }
-    
-    
+
+    /**
+     * Concatenation of value arrays.  The arrays are never modified, so this is an
+     * immutable list.
+     */
+    private static final class ListView<T> extends AbstractList<T> implements RandomAccess {
+        private final Object[][] mSegments;
+        /**
+         * Index of first value of each segment.
+         */
+        private final int[] mOffsets;
+        private final boolean mReverse;
+        private final int mSize;
+        /**
+         * Flattened values, volatile so views shared between threads see a complete array.
+         */
+        private volatile Object[] mFlat;
+
+        ListView(Object[][] segments, boolean reverse) {
+            mSegments = segments;
+            mReverse = reverse;
+            mOffsets = new int[segments.length];
+            int size = 0;
+            for (int i = 0; i < segments.length; i++) {
+                mOffsets[i] = size;
+                size += segments[i].length;
+            }
+            mSize = size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+            }
+            Object[] flat = mFlat;
+            if (flat != null) {
+                return (T) flat[index];
+            }
+            int segment = Arrays.binarySearch(mOffsets,index);
+            if (segment < 0) {
+                segment = -segment-2;
+            }
+            Object[] values = mSegments[segment];
+            int i = index-mOffsets[segment];
+            return (T) values[mReverse ? values.length-1-i : i];
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Iterator<T> iterator() {
+            // Arrays.asList does not support removal through the iterator.
+            return Arrays.asList((T[]) flat()).iterator();
+        }
+
+        @Override
+        public Spliterator<T> spliterator() {
+            return Spliterators.spliterator(flat(),Spliterator.ORDERED | Spliterator.IMMUTABLE);
+        }
+
+        @Override
+        public Object[] toArray() {
+            return flat().clone();
+        }
+
+        private Object[] flat() {
+            Object[] flat = mFlat;
+            if (flat == null) {
+                flat = new Object[mSize];
+                int pos = 0;
+                for (Object[] values: mSegments) {
+                    if (mReverse) {
+                        for (int i = values.length-1; i >= 0; i--) {
+                            flat[pos++] = values[i];
+                        }
+                    } else {
+                        System.arraycopy(values,0,flat,pos,values.length);
+                        pos += values.length;
+                    }
+                }
+                mFlat = flat;
+            }
+            return flat;
+        }
+    }
+
 }
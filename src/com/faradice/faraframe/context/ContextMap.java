@@ -4,8 +4,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeSet;
 
 /**
  * <H1> ContextMap - allow context binding using key-value pairs.</H1>
@@ -22,6 +25,12 @@ import java.util.Set;
  * In addition, getExact and containsKeyExact can be used to query only the 
  * specified context without checking parent contexts.
  * 
+ * Resolved values can optionally be cached, see setCacheSize().  This pays off
+ * when the same context and key pairs are queried repeatedly between modifications.
+ * 
+ * A map created with weak contexts does not keep contexts from being garbage
+ * collected.  Bindings of collected contexts are removed on later modifications.
+ * 
  * 
  * <p> Author Vilmundur Palmason
  * <p> Created Oct 30, 2003
@@ -38,25 +47,73 @@ public class ContextMap<K,V> {
      */
     private Map<K,ContextBinding<V>> mMap;
     
+    /**
+     * Reverse index of mMap.
+     * Key: Context, Value: keys bound in exactly that context.
+     */
+    private ContextBinding<Set<K>> mBoundKeys;
+    
+    /**
+     * Tracks contexts when they are held weakly, else null.
+     */
+    private ContextReclaimer mReclaimer;
+    
+    /**
+     * Marks resolutions where the key is not bound in the context or any ancestor.
+     */
+    private static final Object NOT_BOUND = new Object();
+    
+    /**
+     * Cache of resolved values, null if caching is disabled.
+     */
+    private ResolvedValueCache mCache;
+    
+    /**
+     * Incremented on every modification, cached values from older versions are stale.
+     */
+    private long mVersion = 1;
+    
+    /**
+     * Receives changes when set, see setChangeNotifier().
+     */
+    private ContextChangeNotifier mNotifier;
+    
     /**
      * Create empty context map.  Keys will be compared using hashValue() and equals().
      * Ordering is not preserved.
      */
 	public ContextMap() {
-        mMap = new HashMap<K,ContextBinding<V>>();
+        this(false);
 	}
  
+    /**
+     * Create empty context map, optionally holding contexts weakly.  With weak
+     * contexts, bindings do not keep their context from being garbage collected.
+     * Bindings of collected contexts are removed in batches by later calls to put(),
+     * remove() or removeAll(), without scanning the whole map.  See getReclaimer().
+     * @param weakContexts True to hold contexts weakly. 
+     */
+    public ContextMap(boolean weakContexts) {
+        mMap = new HashMap<K,ContextBinding<V>>();
+        if (weakContexts) {
+            mReclaimer = new ContextReclaimer();
+        }
+        mBoundKeys = new ContextBinding<Set<K>>(!weakContexts);
+    }
+ 
  
     /**
      * Create empty context map.  Keys will be stored and ordered depending on
      * the map implementation passed.  This ordering will be the same for all
-     * contexts.
+     * contexts.  Keys are compared the same way as in an IdentityHashMap or a
+     * SortedMap passed here, other maps must compare keys with equals().
      * @param keyMap 
      */
     
     public ContextMap(Map<K,ContextBinding<V>> keyMap) {
         keyMap.clear();
         mMap = keyMap;
+        mBoundKeys = new ContextBinding<Set<K>>();
     }
     
     /**
@@ -68,12 +125,26 @@ public class ContextMap<K,V> {
      * @param value 
      */
     public void put(ContextHandle handle,K key,V value) {
+        reclaimContexts();
         ContextBinding<V> binding =  mMap.get(key);
         if (binding == null) {
-            binding = new ContextBinding<V>();
+            binding = new ContextBinding<V>(mReclaimer == null);
             mMap.put(key,binding);
         }
         binding.set(handle,value);
+        Set<K> boundKeys = mBoundKeys.getExact(handle);
+        if (boundKeys == null) {
+            boundKeys = newKeySet();
+            mBoundKeys.set(handle,boundKeys);
+            if (mReclaimer != null) {
+                mReclaimer.track(handle);
+            }
+        }
+        boundKeys.add(key);
+        mVersion++;
+        if (mNotifier != null) {
+            mNotifier.changed(this,handle,Collections.singleton(key));
+        }
     }
     
     /**
@@ -84,10 +155,20 @@ public class ContextMap<K,V> {
      * @return the value
      */
 
+    @SuppressWarnings("unchecked")
     public V get(ContextHandle handle,Object key) {
-        ContextBinding<V> binding = mMap.get(key);
-        if (binding == null) return null;
-        return binding.get(handle);
+        Object value = lookup(handle,key);
+        return value == NOT_BOUND ? null : (V) value;
+    }
+    
+    /**
+     * Get value bound to key in the current context, see CurrentContext.
+     * @param key 
+     * @return the value
+     * @throws IllegalStateException if there is no current context.
+     */
+    public V get(Object key) {
+        return get(CurrentContext.require(),key);
     }
     
     /**
@@ -111,12 +192,41 @@ public class ContextMap<K,V> {
      * @return  True if key is bound, else false
      */
     public boolean containsKey(ContextHandle handle,Object key) {
+        return lookup(handle,key) != NOT_BOUND;
+    }
+    
+    /**
+     * Check if specified key is bound in the current context, see CurrentContext.
+     * @param key 
+     * @return  True if key is bound, else false
+     * @throws IllegalStateException if there is no current context.
+     */
+    public boolean containsKey(Object key) {
+        return containsKey(CurrentContext.require(),key);
+    }
+    
+    /**
+     * Resolve key in context, using the cache if enabled.
+     * @return the bound value or NOT_BOUND.
+     */
+    private Object lookup(ContextHandle handle,Object key) {
+        ResolvedValueCache cache = mCache;
+        if (cache == null || handle == null || key == null) {
+            return resolve(handle,key);
+        }
+        int handleId = handle.getId();
+        Object value = cache.get(handleId,key,mVersion);
+        if (value == ResolvedValueCache.MISS) {
+            value = resolve(handle,key);
+            cache.put(handleId,key,mVersion,value);
+        }
+        return value;
+    }
+    
+    private Object resolve(ContextHandle handle,Object key) {
         ContextBinding<V> binding = mMap.get(key);
-        if (binding == null) return false;
-        Set<ContextHandle> ctxSet = new HashSet<ContextHandle>(binding.boundContexts());
-        Set<ContextHandle> allImplied = handle.getAllImplied();
-        ctxSet.retainAll(allImplied);
-        return (ctxSet.size() >0);
+        if (binding == null) return NOT_BOUND;
+        return binding.resolve(handle,NOT_BOUND);
     }
     
     
@@ -129,7 +239,7 @@ public class ContextMap<K,V> {
     public boolean containsKeyExact(ContextHandle handle,K key) {
         ContextBinding<V> binding = mMap.get(key);
         if (binding == null) return false;
-        return binding.boundContexts().contains(handle);
+        return binding.containsExact(handle);
     }
     
     /**
@@ -139,12 +249,25 @@ public class ContextMap<K,V> {
      * @param key 
      */
     public void remove(ContextHandle handle,Object key) {
+        reclaimContexts();
         ContextBinding<V> binding = mMap.get(key);
-        if (binding != null) {
+        if (binding != null && binding.containsExact(handle)) {
             binding.remove(handle);
-            if (binding.boundContexts().size() == 0) {
+            if (binding.size() == 0) {
                 mMap.remove(key);
             }
+            Set<K> boundKeys = mBoundKeys.getExact(handle);
+            boundKeys.remove(key);
+            if (boundKeys.isEmpty()) {
+                mBoundKeys.remove(handle);
+                if (mReclaimer != null) {
+                    mReclaimer.untrack(handle);
+                }
+            }
+            mVersion++;
+            if (mNotifier != null) {
+                mNotifier.changed(this,handle,Collections.singleton(key));
+            }
         }
     }
 
@@ -154,11 +277,85 @@ public class ContextMap<K,V> {
      * @param handle 
      */ 
     public void removeAll(ContextHandle handle) {
-        // Requires seperate set because we are removing from mMap inside loop.
-        Set<K> toIterate = new HashSet<K>(mMap.keySet());
-        for (K key: toIterate) {
-            remove(handle,key);
+        reclaimContexts();
+        Set<K> boundKeys = mBoundKeys.remove(handle);
+        if (boundKeys == null) return;
+        if (mReclaimer != null) {
+            mReclaimer.untrack(handle);
+        }
+        removeBindings(handle.getId(),boundKeys);
+        if (mNotifier != null) {
+            mNotifier.changed(this,handle,boundKeys);
+        }
+    }
+    
+    private void removeBindings(int handleId,Set<K> boundKeys) {
+        for (K key: boundKeys) {
+            ContextBinding<V> binding = mMap.get(key);
+            if (binding == null) continue;
+            binding.removeById(handleId);
+            if (binding.size() == 0) {
+                mMap.remove(key);
+            }
     	}
+        mVersion++;
+    }
+    
+    /**
+     * Create a set comparing keys the same way as the key map.
+     */
+    private Set<K> newKeySet() {
+        if (mMap instanceof IdentityHashMap) {
+            return Collections.newSetFromMap(new IdentityHashMap<K,Boolean>());
+        }
+        if (mMap instanceof SortedMap) {
+            return new TreeSet<K>(((SortedMap<K,?>) mMap).comparator());
+        }
+        return new HashSet<K>();
+    }
+    
+    /**
+     * Remove bindings of contexts that have been garbage collected, if contexts are held weakly.
+     */
+    private void reclaimContexts() {
+        if (mReclaimer == null) return;
+        int[] ids = mReclaimer.poll();
+        if (ids == null) return;
+        int bindings = 0;
+        for (int id: ids) {
+            Set<K> boundKeys = mBoundKeys.removeById(id);
+            if (boundKeys != null) {
+                removeBindings(id,boundKeys);
+                bindings += boundKeys.size();
+            }
+        }
+        mReclaimer.reclaimed(ids.length,bindings);
+    }
+    
+    /**
+     * Get reclamation statistics for weakly held contexts.
+     * @return the reclaimer, null unless this map was created with weak contexts.
+     */
+    public ContextReclaimer getReclaimer() {
+        return mReclaimer;
+    }
+    
+    /**
+     * Report changes made by put(), remove() and removeAll() to a notifier, which
+     * delivers them to it's listeners in batches.  Reclaimed bindings are not reported,
+     * no live context can see them.
+     * @param notifier The notifier, null to stop reporting changes.
+     */
+    public void setChangeNotifier(ContextChangeNotifier notifier) {
+        mNotifier = notifier;
+    }
+    
+    /**
+     * Get the notifier receiving changes of this map.
+     * @return the notifier, null if none is set.
+     */
+    public ContextChangeNotifier getChangeNotifier() {
+        return mNotifier;
     }
     
     /**
@@ -168,15 +365,111 @@ public class ContextMap<K,V> {
      * @return the keyset 
      */
     public Set<K> keySet(ContextHandle handle) {
-        Set<K> allKeys =  mMap.keySet(); 
-        Set<K> result = new HashSet<K>();
-        for (K key: allKeys) {
-			if (containsKey(handle,key)) {
-                result.add(key);
+        Set<K> result = newKeySet();
+        for (ContextHandle h: handle.getAncestors()) {
+            Set<K> boundKeys = mBoundKeys.getExact(h);
+			if (boundKeys != null) {
+                result.addAll(boundKeys);
 			}
 		}
         return Collections.unmodifiableSet(result);
     }
+
+    /**
+     * Get the keys bound in exactly this context.  Parent context is not used.
+     * The set cannot be modified.
+     * @param handle
+     * @return the keyset, empty if no key is bound in the context.
+     */
+    public Set<K> keySetExact(ContextHandle handle) {
+        Set<K> boundKeys = mBoundKeys.getExact(handle);
+        if (boundKeys == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(boundKeys);
+    }
+
+    /**
+     * Get number of keys visible in specified context, i.e. the size of keySet().
+     * @param handle 
+     * @return number of keys bound in the context or any parent context.
+     */
+    public int size(ContextHandle handle) {
+        Set<K> single = null;
+        for (ContextHandle h: handle.getAncestors()) {
+            Set<K> boundKeys = mBoundKeys.getExact(h);
+            if (boundKeys != null) {
+                if (single != null) {
+                    // Keys may be bound in more than one context, count distinct keys.
+                    return keySet(handle).size();
+                }
+                single = boundKeys;
+            }
+        }
+        return single != null ? single.size() : 0;
+    }
+    
+    /**
+     * Check if any key is visible in specified context.
+     * @param handle 
+     * @return True if no key is bound in the context or any parent context.
+     */
+    public boolean isEmpty(ContextHandle handle) {
+        for (ContextHandle h: handle.getAncestors()) {
+            if (mBoundKeys.containsExact(h)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Get an immutable snapshot of all key/value pairs visible in the specified
+     * context.  Values are resolved once, so lookups in the snapshot never consult
+     * parent contexts.  Later changes to this map are not reflected in the snapshot.
+     * All read methods of java.util.Map are supported, including entrySet() and values().
+     * @param handle 
+     * @return an immutable map
+     */
+    public Map<K,V> freeze(ContextHandle handle) {
+        Set<K> keys = keySet(handle);
+        Object[] keyArray = keys.toArray();
+        Object[] valueArray = new Object[keyArray.length];
+        for (int i = 0; i < keyArray.length; i++) {
+            valueArray[i] = mMap.get(keyArray[i]).get(handle);
+        }
+        return new FrozenContextMap<K,V>(keyArray,valueArray);
+    }
+    
+    /**
+     * Enable caching of resolved values.  The cache holds at most (roughly) the
+     * specified number of context and key pairs, including pairs that resolved to 
+     * no binding.  Any modification of this map invalidates all cached values.
+     * Setting a new size clears the cache and its statistics.  The cache is safe
+     * for concurrent get() calls.  Caching is not used when this map was created
+     * with a key map that is not a HashMap, such as an IdentityHashMap or TreeMap,
+     * since the cache compares keys with equals().
+     * @param maxEntries Maximum number of cached entries, 0 disables caching.
+     */
+    public void setCacheSize(int maxEntries) {
+        mCache = maxEntries > 0 && mMap instanceof HashMap ? new ResolvedValueCache(maxEntries) : null;
+    }
+    
+    /**
+     * Get number of lookups answered from the cache since caching was enabled.
+     * @return number of cache hits, 0 if caching is disabled.
+     */
+    public long getCacheHits() {
+        return mCache != null ? mCache.getHits() : 0;
+    }
+    
+    /**
+     * Get number of lookups that had to be resolved since caching was enabled.
+     * @return number of cache misses, 0 if caching is disabled.
+     */
+    public long getCacheMisses() {
+        return mCache != null ? mCache.getMisses() : 0;
+    }
     
     /**
      * Get java.util.Map view of this instance as seen from the specified context.  
@@ -191,7 +484,7 @@ public class ContextMap<K,V> {
         Map<K,V> m = new Map<K,V>() {
 
 			public int size() {
-                return ContextMap.this.keySet(handle).size();
+                return ContextMap.this.size(handle);
 			}
 
 			public void clear() {
@@ -199,7 +492,7 @@ public class ContextMap<K,V> {
 			}
 
 			public boolean isEmpty() {
-                return size()==0;
+                return ContextMap.this.isEmpty(handle);
 			}
 			public boolean containsKey(Object key) {
                 return ContextMap.this.containsKey(handle,key);
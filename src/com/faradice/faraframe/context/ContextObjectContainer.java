@@ -0,0 +1,334 @@
+package com.faradice.faraframe.context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <H1> ContextObjectContainer - run the life cycle of context objects. </H1>
+ *
+ * Holds the IContextObject components living in one context and drives their
+ * life cycle as described in IContextObject:
+ *
+ * 1. add() constructs the component (if given a class) and calls setContext().
+ * 2. start() calls init() on all components not added as lazy.  Components that
+ *    implement IContextDependent are initialized after their dependencies.
+ *    Components without pending dependencies are initialized in parallel, one
+ *    wave at a time, on a bounded number of threads.
+ * 3. get() returns a component, initializing it (and it's dependencies) first if
+ *    it was added as lazy.
+ * 4. stop() calls destroy() on all initialized components, dependents before
+ *    their dependencies.
+ *
+ * The time spent in each init() is recorded, see getInitTimes().
+ *
+ */
+public class ContextObjectContainer {
+    private final ContextHandle mContext;
+    private final int mParallelism;
+    /**
+     * All components in the order they were added.
+     */
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    /**
+     * Resolved entries by requested type.
+     */
+    private final Map<Class<?>,Entry> mByType = new HashMap<Class<?>,Entry>();
+    /**
+     * Initialized entries in the order init() completed, which is a valid
+     * topological order.
+     */
+    private final List<Entry> mInitialized = new ArrayList<Entry>();
+
+    /**
+     * Create container for components living in the specified context.  Components
+     * are initialized using as many threads as there are available processors.
+     * @param context Context passed to setContext() of all components.
+     */
+    public ContextObjectContainer(ContextHandle context) {
+        this(context,Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create container for components living in the specified context.
+     * @param context Context passed to setContext() of all components.
+     * @param parallelism Maximum number of components initialized at the same time.
+     */
+    public ContextObjectContainer(ContextHandle context, int parallelism) {
+        mContext = context;
+        mParallelism = Math.max(1,parallelism);
+    }
+
+    /**
+     * Get the context of this container.
+     * @return the context
+     */
+    public ContextHandle getContext() {
+        return mContext;
+    }
+
+    /**
+     * Construct component using it's public empty constructor and add it.
+     * @param type Component class
+     * @param lazy True if the component should only be initialized on first get().
+     * @return the new component
+     */
+    public <T extends IContextObject> T add(Class<T> type, boolean lazy) {
+        T object;
+        try {
+            object = type.getConstructor().newInstance();
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("Can not construct " + type.getName(),ex);
+        }
+        add(object,lazy);
+        return object;
+    }
+
+    /**
+     * Add a constructed component and pass it the context of this container.
+     * @param object The component
+     * @param lazy True if the component should only be initialized on first get().
+     */
+    public synchronized void add(IContextObject object, boolean lazy) {
+        object.setContext(mContext);
+        mEntries.add(new Entry(object,lazy));
+        mByType.clear();
+    }
+
+    /**
+     * Initialize all components that were not added as lazy, and their dependencies.
+     * Returns when all have been initialized.  If any init() fails, components that
+     * were initialized are destroyed again.
+     * @throws IllegalStateException if an init() fails or dependencies are missing or cyclic.
+     */
+    public void start() {
+        List<List<Entry>> waves = new ArrayList<List<Entry>>();
+        synchronized (this) {
+            Map<Entry,Integer> levels = new HashMap<Entry,Integer>();
+            for (Entry entry: mEntries) {
+                if (!entry.mLazy) {
+                    level(entry,levels,new ArrayList<Entry>());
+                }
+            }
+            for (Map.Entry<Entry,Integer> level: levels.entrySet()) {
+                while (waves.size() <= level.getValue()) {
+                    waves.add(new ArrayList<Entry>());
+                }
+                waves.get(level.getValue()).add(level.getKey());
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(mParallelism,new ThreadFactory() {
+            private int mCount;
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,"ContextObjectContainer-" + (++mCount));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            for (List<Entry> wave: waves) {
+                List<Future<?>> futures = new ArrayList<Future<?>>(wave.size());
+                for (final Entry entry: wave) {
+                    futures.add(executor.submit(new Runnable() {
+                        public void run() {
+                            initialize(entry);
+                        }
+                    }));
+                }
+                // Let the whole wave finish so nothing is initialized after a failure is handled.
+                Throwable failure = null;
+                for (Future<?> future: futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ex) {
+                        if (failure == null) {
+                            failure = ex.getCause();
+                        }
+                    }
+                }
+                if (failure != null) {
+                    stop();
+                    if (failure instanceof RuntimeException) {
+                        throw (RuntimeException) failure;
+                    }
+                    throw new IllegalStateException(failure);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            stop();
+            throw new IllegalStateException("Interrupted while initializing",ex);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Get the component of the specified type, initializing it first if needed.
+     * @param type Class, super class or interface of the component.
+     * @return the initialized component
+     * @throws IllegalStateException if no single component matches or init() fails.
+     */
+    public <T> T get(Class<T> type) {
+        Entry entry;
+        synchronized (this) {
+            entry = resolve(type,null);
+            if (!entry.mInitialized) {
+                // Fails on missing or cyclic dependencies before anything is initialized.
+                level(entry,new HashMap<Entry,Integer>(),new ArrayList<Entry>());
+            }
+        }
+        initialize(entry);
+        return type.cast(entry.mObject);
+    }
+
+    /**
+     * Destroy all initialized components, in the reverse order of initialization.
+     * Failures in destroy() do not prevent other components from being destroyed,
+     * the first failure is thrown when all have been destroyed.
+     */
+    public void stop() {
+        List<Entry> toDestroy;
+        synchronized (this) {
+            toDestroy = new ArrayList<Entry>(mInitialized);
+            mInitialized.clear();
+        }
+        RuntimeException failure = null;
+        for (int i = toDestroy.size()-1; i >= 0; i--) {
+            Entry entry = toDestroy.get(i);
+            synchronized (entry) {
+                entry.mInitialized = false;
+                try {
+                    entry.mObject.destroy();
+                } catch (RuntimeException ex) {
+                    if (failure == null) {
+                        failure = ex;
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Get time spent in init() for each initialized component, in the order they
+     * were initialized.
+     * @return Map of component class to init time in nanoseconds.
+     */
+    public synchronized Map<Class<?>,Long> getInitTimes() {
+        Map<Class<?>,Long> times = new LinkedHashMap<Class<?>,Long>();
+        for (Entry entry: mInitialized) {
+            times.put(entry.mObject.getClass(),entry.mInitNanos);
+        }
+        return Collections.unmodifiableMap(times);
+    }
+
+    /**
+     * Initialize entry after it's dependencies, unless already initialized.
+     */
+    private void initialize(Entry entry) {
+        if (entry.mInitialized) return;
+        List<Entry> dependencies;
+        synchronized (this) {
+            dependencies = dependencies(entry,new ArrayList<Entry>());
+        }
+        for (Entry dependency: dependencies) {
+            initialize(dependency);
+        }
+        synchronized (entry) {
+            if (entry.mInitialized) return;
+            long start = System.nanoTime();
+            try {
+                entry.mObject.init();
+            } catch (RuntimeException ex) {
+                throw new IllegalStateException("Failed to initialize " + entry.mObject.getClass().getName(),ex);
+            }
+            entry.mInitNanos = System.nanoTime()-start;
+            entry.mInitialized = true;
+        }
+        synchronized (this) {
+            mInitialized.add(entry);
+        }
+    }
+
+    /**
+     * Compute wave of entry and all it's dependencies: 0 if it has no dependencies,
+     * else one more than the highest wave of it's dependencies.
+     */
+    private int level(Entry entry, Map<Entry,Integer> levels, List<Entry> path) {
+        Integer known = levels.get(entry);
+        if (known != null) return known;
+        int level = 0;
+        for (Entry dependency: dependencies(entry,path)) {
+            level = Math.max(level,level(dependency,levels,path)+1);
+        }
+        path.remove(path.size()-1);
+        levels.put(entry,level);
+        return level;
+    }
+
+    /**
+     * Resolve dependencies of entry.  Path holds the entries currently being resolved,
+     * entry is added to it.
+     */
+    private List<Entry> dependencies(Entry entry, List<Entry> path) {
+        if (path.contains(entry)) {
+            throw new IllegalStateException("Dependency cycle: " + path + " -> " + entry);
+        }
+        path.add(entry);
+        List<Entry> result = new ArrayList<Entry>();
+        if (entry.mObject instanceof IContextDependent) {
+            for (Class<?> type: ((IContextDependent) entry.mObject).getDependencies()) {
+                result.add(resolve(type,entry));
+            }
+        }
+        return result;
+    }
+
+    private Entry resolve(Class<?> type, Entry dependent) {
+        Entry entry = mByType.get(type);
+        if (entry != null) return entry;
+        for (Entry candidate: mEntries) {
+            if (type.isInstance(candidate.mObject)) {
+                if (entry != null) {
+                    throw new IllegalStateException("More than one " + type.getName() + " in context");
+                }
+                entry = candidate;
+            }
+        }
+        if (entry == null) {
+            throw new IllegalStateException("No " + type.getName() + " in context"
+                + (dependent != null ? ", required by " + dependent : ""));
+        }
+        mByType.put(type,entry);
+        return entry;
+    }
+
+    private static final class Entry {
+        private final IContextObject mObject;
+        private final boolean mLazy;
+        private volatile boolean mInitialized;
+        private long mInitNanos;
+
+        Entry(IContextObject object, boolean lazy) {
+            mObject = object;
+            mLazy = lazy;
+        }
+
+        @Override
+        public String toString() {
+            return mObject.getClass().getName();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.faradice.faraframe.context;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * <H1> ContextReclaimer - track contexts held weakly by a ContextMap or ContextList. </H1>
+ *
+ * Each context that has bindings in the owning map or list is tracked through a weak
+ * reference registered with a ReferenceQueue.  The owner polls the queue on
+ * modification and removes bindings of the contexts found there, so the cost of
+ * reclaiming is proportional to the number of dead contexts and their bindings.
+ *
+ * Statistics can be read at any time, or observed through an IReclaimListener.
+ */
+public class ContextReclaimer {
+    private final ReferenceQueue<ContextHandle> mQueue = new ReferenceQueue<ContextHandle>();
+    /**
+     * Weak references of all tracked contexts, keyed by context id.
+     */
+    private final ContextBinding<HandleReference> mTracked = new ContextBinding<HandleReference>(false);
+    private long mReclaimedContexts;
+    private long mReclaimedBindings;
+    private IReclaimListener mListener;
+
+    /**
+     * Start tracking context, does nothing if already tracked.
+     * @param handle Context that now has bindings.
+     */
+    void track(ContextHandle handle) {
+        if (!mTracked.containsExact(handle)) {
+            mTracked.set(handle,new HandleReference(handle,mQueue));
+        }
+    }
+
+    /**
+     * Stop tracking context that no longer has any bindings.
+     * @param handle Context that had all it's bindings removed.
+     */
+    void untrack(ContextHandle handle) {
+        HandleReference ref = mTracked.remove(handle);
+        if (ref != null) {
+            // A cleared reference is never enqueued.
+            ref.clear();
+        }
+    }
+
+    /**
+     * Get ids of all tracked contexts that have been garbage collected since last poll.
+     * @return ids of dead contexts, or null if there are none.
+     */
+    int[] poll() {
+        Reference<? extends ContextHandle> ref = mQueue.poll();
+        if (ref == null) return null;
+        int[] ids = new int[8];
+        int count = 0;
+        do {
+            int id = ((HandleReference) ref).mId;
+            if (mTracked.removeById(id) != null) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids,count*2);
+                }
+                ids[count++] = id;
+            }
+            ref = mQueue.poll();
+        } while (ref != null);
+        return Arrays.copyOf(ids,count);
+    }
+
+    /**
+     * Record that bindings of dead contexts have been removed.
+     * @param contexts Number of contexts
+     * @param bindings Number of bindings
+     */
+    void reclaimed(int contexts, int bindings) {
+        mReclaimedContexts += contexts;
+        mReclaimedBindings += bindings;
+        IReclaimListener listener = mListener;
+        if (listener != null) {
+            listener.contextsReclaimed(this,contexts,bindings);
+        }
+    }
+
+    /**
+     * Get number of contexts that currently have bindings and have not been reclaimed.
+     * @return number of live contexts
+     */
+    public int getLiveContexts() {
+        return mTracked.size();
+    }
+
+    /**
+     * Get total number of contexts reclaimed after they were garbage collected.
+     * @return number of reclaimed contexts
+     */
+    public long getReclaimedContexts() {
+        return mReclaimedContexts;
+    }
+
+    /**
+     * Get total number of bindings removed because their context was garbage collected.
+     * @return number of reclaimed bindings
+     */
+    public long getReclaimedBindings() {
+        return mReclaimedBindings;
+    }
+
+    /**
+     * Set listener notified after each reclaimed batch.
+     * @param listener The listener, null to remove.
+     */
+    public void setListener(IReclaimListener listener) {
+        mListener = listener;
+    }
+
+    private static final class HandleReference extends WeakReference<ContextHandle> {
+        private final int mId;
+
+        HandleReference(ContextHandle handle, ReferenceQueue<ContextHandle> queue) {
+            super(handle,queue);
+            mId = handle.getId();
+        }
+    }
+}
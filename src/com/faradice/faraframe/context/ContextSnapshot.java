@@ -0,0 +1,267 @@
+package com.faradice.faraframe.context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <H1> ContextSnapshot - contexts and bindings restored from a binary file. </H1>
+ *
+ * Loads a file written by ContextSnapshotWriter:
+ *
+ * ContextSnapshot snapshot = ContextSnapshot.open(file);
+ * ContextHandle requestCtx = snapshot.getContext("request");
+ * ContextMap<String,String> settings = snapshot.getMap("settings",ContextSnapshot.STRING_CODEC);
+ *
+ * The file is memory mapped and nothing but the names is read when it is opened.
+ * Contexts are created the first time they are needed, either by getContext() or by
+ * a binding of a map, and parents before children.  Each map is built on it's first
+ * getMap().  Restored contexts are new ContextHandle instances, they do not compare
+ * equal to the contexts that were written.
+ *
+ * File layout, all ints big endian:
+ *
+ * int magic
+ * int stringCount, int[stringCount+1] end offsets, UTF-8 bytes
+ * int handleCount, int[handleCount+1] end offsets into parent pool, int[] parent pool
+ * int nameCount, nameCount * (int name, int handle)
+ * int mapCount, per map: int name, int bindingCount,
+ *     bindingCount * (int handle, int key, int value offset, int value length or -1 for null),
+ *     int value bytes length, value bytes
+ *
+ * Strings and handles are referred to by index.  Parents always have lower indexes
+ * than their children.
+ *
+ */
+public class ContextSnapshot {
+    static final int MAGIC = 0x46435831;
+
+    /**
+     * Codec for String values, stored as UTF-8.
+     */
+    public static final IValueCodec<String> STRING_CODEC = new IValueCodec<String>() {
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        public String decode(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return new String(bytes,StandardCharsets.UTF_8);
+        }
+    };
+
+    private final ByteBuffer mBuffer;
+    private final ClassLoader mClassLoader;
+
+    private final int mStringOffsets;
+    private final int mStringData;
+    private final String[] mStrings;
+
+    private final int mParentOffsets;
+    private final int mParentPool;
+    private final ContextHandle[] mHandles;
+
+    /**
+     * Key: Context name, Value: handle index.
+     */
+    private final Map<String,Integer> mContextNames = new LinkedHashMap<String,Integer>();
+    /**
+     * Key: Map name, Value: position of the binding count of the map.
+     */
+    private final Map<String,Integer> mMapSections = new LinkedHashMap<String,Integer>();
+    private final Map<String,ContextMap<String,?>> mMaps = new HashMap<String,ContextMap<String,?>>();
+
+    private ContextSnapshot(ByteBuffer buffer, ClassLoader cl) throws IOException {
+        mBuffer = buffer;
+        mClassLoader = cl;
+        if (buffer.limit() < 4 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a context snapshot");
+        }
+        int pos = 4;
+        int stringCount = buffer.getInt(pos);
+        mStringOffsets = pos+4;
+        mStringData = mStringOffsets+4*(stringCount+1);
+        mStrings = new String[stringCount];
+        pos = mStringData+buffer.getInt(mStringOffsets+4*stringCount);
+
+        int handleCount = buffer.getInt(pos);
+        mParentOffsets = pos+4;
+        mParentPool = mParentOffsets+4*(handleCount+1);
+        mHandles = new ContextHandle[handleCount];
+        pos = mParentPool+4*buffer.getInt(mParentOffsets+4*handleCount);
+
+        int nameCount = buffer.getInt(pos);
+        pos += 4;
+        for (int i = 0; i < nameCount; i++, pos += 8) {
+            mContextNames.put(string(buffer.getInt(pos)),buffer.getInt(pos+4));
+        }
+
+        int mapCount = buffer.getInt(pos);
+        pos += 4;
+        for (int i = 0; i < mapCount; i++) {
+            mMapSections.put(string(buffer.getInt(pos)),pos+4);
+            int bindingCount = buffer.getInt(pos+4);
+            pos += 8+16*bindingCount;
+            pos += 4+buffer.getInt(pos);
+        }
+    }
+
+    /**
+     * Open snapshot, contexts will use the class loader of ContextHandle.
+     * @param file File written by ContextSnapshotWriter
+     * @return the snapshot
+     * @throws IOException if the file can not be read or is not a snapshot.
+     */
+    public static ContextSnapshot open(File file) throws IOException {
+        return open(file,ContextHandle.class.getClassLoader());
+    }
+
+    /**
+     * Open snapshot.
+     * @param file File written by ContextSnapshotWriter
+     * @param cl Class loader of restored contexts
+     * @return the snapshot
+     * @throws IOException if the file can not be read or is not a snapshot.
+     */
+    public static ContextSnapshot open(File file, ClassLoader cl) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file,"r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed.
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+            try {
+                return new ContextSnapshot(buffer,cl);
+            } catch (IndexOutOfBoundsException ex) {
+                throw new IOException("Truncated context snapshot: " + file,ex);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Get names of all stored contexts.
+     * @return the names, in the order they were added to the writer.
+     */
+    public Set<String> getContextNames() {
+        return Collections.unmodifiableSet(mContextNames.keySet());
+    }
+
+    /**
+     * Get names of all stored maps.
+     * @return the names, in the order they were added to the writer.
+     */
+    public Set<String> getMapNames() {
+        return Collections.unmodifiableSet(mMapSections.keySet());
+    }
+
+    /**
+     * Get a named context, creating it and it's ancestors on first access.
+     * @param name Name given to ContextSnapshotWriter.addContext()
+     * @return the context, null if no context was stored with that name.
+     */
+    public synchronized ContextHandle getContext(String name) {
+        Integer index = mContextNames.get(name);
+        return index != null ? handle(index) : null;
+    }
+
+    /**
+     * Get a stored map, building it on first access.  Later calls return the same
+     * map, which may have been modified since.
+     * @param name Name given to ContextSnapshotWriter.addMap()
+     * @param codec Used to decode the values, must match the codec used when writing.
+     * @return the map, null if no map was stored with that name.
+     */
+    public synchronized <V> ContextMap<String,V> getMap(String name, IValueCodec<? extends V> codec) {
+        @SuppressWarnings("unchecked")
+        ContextMap<String,V> map = (ContextMap<String,V>) mMaps.get(name);
+        if (map != null) return map;
+        Integer section = mMapSections.get(name);
+        if (section == null) return null;
+
+        map = new ContextMap<String,V>();
+        int bindingCount = mBuffer.getInt(section);
+        int records = section+4;
+        int values = records+16*bindingCount+4;
+        for (int i = 0, pos = records; i < bindingCount; i++, pos += 16) {
+            ContextHandle handle = handle(mBuffer.getInt(pos));
+            String key = string(mBuffer.getInt(pos+4));
+            int length = mBuffer.getInt(pos+12);
+            V value = null;
+            if (length >= 0) {
+                int start = values+mBuffer.getInt(pos+8);
+                ByteBuffer bytes = mBuffer.duplicate();
+                bytes.limit(start+length);
+                bytes.position(start);
+                value = codec.decode(bytes.slice());
+            }
+            map.put(handle,key,value);
+        }
+        mMaps.put(name,map);
+        return map;
+    }
+
+    private String string(int index) {
+        String s = mStrings[index];
+        if (s == null) {
+            int start = mStringData+(index == 0 ? 0 : mBuffer.getInt(mStringOffsets+4*index));
+            int end = mStringData+mBuffer.getInt(mStringOffsets+4*(index+1));
+            byte[] bytes = new byte[end-start];
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(start);
+            buffer.get(bytes);
+            s = new String(bytes,StandardCharsets.UTF_8);
+            mStrings[index] = s;
+        }
+        return s;
+    }
+
+    /**
+     * Get context by index, creating it and any missing ancestors.  Ancestors are
+     * created without recursion so deep chains can not overflow the stack.
+     */
+    private ContextHandle handle(int index) {
+        if (mHandles[index] != null) return mHandles[index];
+        int[] pending = new int[8];
+        int top = 0;
+        pending[top++] = index;
+        while (top > 0) {
+            int current = pending[top-1];
+            int first = mBuffer.getInt(mParentOffsets+4*current);
+            int end = mBuffer.getInt(mParentOffsets+4*(current+1));
+            ContextHandle[] parents = new ContextHandle[end-first];
+            boolean ready = true;
+            for (int i = first; i < end; i++) {
+                int parent = mBuffer.getInt(mParentPool+4*i);
+                parents[i-first] = mHandles[parent];
+                if (parents[i-first] == null) {
+                    if (top == pending.length) {
+                        int[] grown = new int[top*2];
+                        System.arraycopy(pending,0,grown,0,top);
+                        pending = grown;
+                    }
+                    pending[top++] = parent;
+                    ready = false;
+                }
+            }
+            if (ready) {
+                top--;
+                if (mHandles[current] == null) {
+                    mHandles[current] = parents.length == 0
+                        ? ContextHandle.newContext(mClassLoader)
+                        : ContextHandle.newContext(parents,mClassLoader);
+                }
+            }
+        }
+        return mHandles[index];
+    }
+}
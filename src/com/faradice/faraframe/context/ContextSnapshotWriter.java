@@ -0,0 +1,219 @@
+package com.faradice.faraframe.context;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <H1> ContextSnapshotWriter - store contexts and bindings in a binary file. </H1>
+ *
+ * Writes a hierarchy of contexts together with the bindings of selected ContextMaps,
+ * so they can be restored with ContextSnapshot instead of being derived again:
+ *
+ * ContextSnapshotWriter writer = new ContextSnapshotWriter();
+ * writer.addContext("app",appCtx);
+ * writer.addContext("request",requestCtx);
+ * writer.addMap("settings",settings,ContextSnapshot.STRING_CODEC);
+ * writer.write(file);
+ *
+ * Named contexts are stored together with all their ancestors.  For each map, the
+ * bindings of exactly those contexts are stored.  Bindings of other contexts could
+ * not be reached from any restored context and are left out.
+ *
+ * The file consists of a string table (map keys and names), a handle table holding
+ * the parents of each context by index, and per map an array of fixed size binding
+ * records followed by the encoded values.  See ContextSnapshot for the layout.
+ *
+ */
+public class ContextSnapshotWriter {
+    private final Map<String,ContextHandle> mContexts = new LinkedHashMap<String,ContextHandle>();
+    private final Map<String,MapSource<?>> mMaps = new LinkedHashMap<String,MapSource<?>>();
+
+    /**
+     * Add a named context.  It's ancestors are stored too, but can only be reached
+     * through it after loading.
+     * @param name Name used with ContextSnapshot.getContext()
+     * @param handle The context
+     */
+    public void addContext(String name, ContextHandle handle) {
+        mContexts.put(name,handle);
+    }
+
+    /**
+     * Add bindings of a map.  The map is read when write() is called.
+     * @param name Name used with ContextSnapshot.getMap()
+     * @param map Map to store
+     * @param codec Used to encode the values
+     */
+    public <V> void addMap(String name, ContextMap<String,V> map, IValueCodec<? super V> codec) {
+        mMaps.put(name,new MapSource<V>(map,codec));
+    }
+
+    /**
+     * Write all added contexts and maps.  The file is first written under a temporary
+     * name and then renamed, so a reader never sees a partially written file.
+     * @param file File to write
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        // Ids are assigned at creation, so ordering by id puts parents before children.
+        Set<ContextHandle> collected = new LinkedHashSet<ContextHandle>();
+        for (ContextHandle handle: mContexts.values()) {
+            collected.addAll(Arrays.asList(handle.getAncestors()));
+        }
+        ContextHandle[] handles = collected.toArray(new ContextHandle[collected.size()]);
+        Arrays.sort(handles,new Comparator<ContextHandle>() {
+            public int compare(ContextHandle h1, ContextHandle h2) {
+                return Integer.compare(h1.getId(),h2.getId());
+            }
+        });
+        Map<ContextHandle,Integer> handleIndexes = new HashMap<ContextHandle,Integer>();
+        for (int i = 0; i < handles.length; i++) {
+            handleIndexes.put(handles[i],i);
+        }
+
+        StringTable strings = new StringTable();
+        List<int[]> names = new ArrayList<int[]>();
+        for (Map.Entry<String,ContextHandle> entry: mContexts.entrySet()) {
+            names.add(new int[] {strings.index(entry.getKey()),handleIndexes.get(entry.getValue())});
+        }
+        List<MapSection> sections = new ArrayList<MapSection>();
+        for (Map.Entry<String,MapSource<?>> entry: mMaps.entrySet()) {
+            sections.add(entry.getValue().encode(strings.index(entry.getKey()),handles,strings));
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),64*1024));
+        try {
+            out.writeInt(ContextSnapshot.MAGIC);
+            strings.write(out);
+
+            out.writeInt(handles.length);
+            int parentCount = 0;
+            out.writeInt(0);
+            for (ContextHandle handle: handles) {
+                parentCount += handle.getDirectlyImplied().size();
+                out.writeInt(parentCount);
+            }
+            for (ContextHandle handle: handles) {
+                for (ContextHandle parent: handle.getDirectlyImplied()) {
+                    out.writeInt(handleIndexes.get(parent));
+                }
+            }
+
+            out.writeInt(names.size());
+            for (int[] name: names) {
+                out.writeInt(name[0]);
+                out.writeInt(name[1]);
+            }
+
+            out.writeInt(sections.size());
+            for (MapSection section: sections) {
+                section.write(out);
+            }
+        } finally {
+            out.close();
+        }
+        java.nio.file.Files.move(tmp.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Strings in order of first use, stored as UTF-8 with an offset table.
+     */
+    private static final class StringTable {
+        private final Map<String,Integer> mIndexes = new HashMap<String,Integer>();
+        private final List<byte[]> mBytes = new ArrayList<byte[]>();
+
+        int index(String s) {
+            Integer index = mIndexes.get(s);
+            if (index == null) {
+                index = mBytes.size();
+                mIndexes.put(s,index);
+                mBytes.add(s.getBytes(StandardCharsets.UTF_8));
+            }
+            return index;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(mBytes.size());
+            int offset = 0;
+            out.writeInt(0);
+            for (byte[] bytes: mBytes) {
+                offset += bytes.length;
+                out.writeInt(offset);
+            }
+            for (byte[] bytes: mBytes) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static final class MapSource<V> {
+        private final ContextMap<String,V> mMap;
+        private final IValueCodec<? super V> mCodec;
+
+        MapSource(ContextMap<String,V> map, IValueCodec<? super V> codec) {
+            mMap = map;
+            mCodec = codec;
+        }
+
+        MapSection encode(int name, ContextHandle[] handles, StringTable strings) {
+            MapSection section = new MapSection(name);
+            for (int i = 0; i < handles.length; i++) {
+                for (String key: mMap.keySetExact(handles[i])) {
+                    V value = mMap.getExact(handles[i],key);
+                    section.add(i,strings.index(key),value == null ? null : mCodec.encode(value));
+                }
+            }
+            return section;
+        }
+    }
+
+    /**
+     * Encoded bindings of one map.
+     */
+    private static final class MapSection {
+        private final int mName;
+        private final List<int[]> mRecords = new ArrayList<int[]>();
+        private final ByteArrayOutputStream mValues = new ByteArrayOutputStream();
+
+        MapSection(int name) {
+            mName = name;
+        }
+
+        void add(int handle, int key, byte[] value) {
+            if (value == null) {
+                mRecords.add(new int[] {handle,key,0,-1});
+            } else {
+                mRecords.add(new int[] {handle,key,mValues.size(),value.length});
+                mValues.write(value,0,value.length);
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(mName);
+            out.writeInt(mRecords.size());
+            for (int[] record: mRecords) {
+                for (int field: record) {
+                    out.writeInt(field);
+                }
+            }
+            out.writeInt(mValues.size());
+            mValues.writeTo(out);
+        }
+    }
+}
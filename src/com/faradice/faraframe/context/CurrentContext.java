@@ -0,0 +1,221 @@
+package com.faradice.faraframe.context;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Callable;
+
+/**
+ * <H1> CurrentContext - ambient context of the running code. </H1>
+ *
+ * Binds a ContextHandle for the duration of a Runnable or Callable, so code called
+ * from it can find the context without passing it along explicitly:
+ *
+ * CurrentContext.run(requestCtx, new Runnable() {
+ *     public void run() {
+ *         ...
+ *         DatabasePool pool = pools.get(POOL_KEY);   // resolved against requestCtx
+ *     }
+ * });
+ *
+ * On JDK versions that provide java.lang.ScopedValue the binding is a scoped
+ * value.  That is cheap for virtual threads and is inherited by subtasks forked
+ * in a StructuredTaskScope.  On older versions a ThreadLocal is used, which is not
+ * inherited by other threads, not even threads started within the scope, so pool
+ * threads created there never keep the context after the scope ends.  In both
+ * cases tasks passed to executors or new threads can carry the context along by
+ * using wrap().
+ *
+ */
+public final class CurrentContext {
+    private static final Object sScopedValue;
+    private static final MethodHandle sWhere;
+    private static final MethodHandle sRun;
+    private static final MethodHandle sOrElse;
+    private static final ThreadLocal<ContextHandle> sThreadContext;
+    /**
+     * Passed to ScopedValue.orElse(), which does not accept null, and mapped back to null.
+     */
+    private static final Object UNBOUND = new Object();
+
+    static {
+        Object scopedValue = null;
+        MethodHandle where = null;
+        MethodHandle run = null;
+        MethodHandle orElse = null;
+        try {
+            Class<?> svClass = Class.forName("java.lang.ScopedValue");
+            Class<?> carrierClass = Class.forName("java.lang.ScopedValue$Carrier");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            scopedValue = lookup.findStatic(svClass,"newInstance",MethodType.methodType(svClass)).invoke();
+            where = lookup.findStatic(svClass,"where",MethodType.methodType(carrierClass,svClass,Object.class))
+                .asType(MethodType.methodType(Object.class,Object.class,Object.class));
+            run = lookup.findVirtual(carrierClass,"run",MethodType.methodType(void.class,Runnable.class))
+                .asType(MethodType.methodType(void.class,Object.class,Runnable.class));
+            orElse = lookup.findVirtual(svClass,"orElse",MethodType.methodType(Object.class,Object.class))
+                .asType(MethodType.methodType(Object.class,Object.class,Object.class));
+            // Preview versions may refuse to bind, make sure it works before relying on it.
+            final Object sv = scopedValue;
+            final MethodHandle get = orElse;
+            final boolean[] bound = new boolean[1];
+            run.invoke(where.invoke(sv,Boolean.TRUE),new Runnable() {
+                public void run() {
+                    try {
+                        bound[0] = get.invoke(sv,UNBOUND) == Boolean.TRUE;
+                    } catch (Throwable ex) {
+                        // Not bound
+                    }
+                }
+            });
+            if (!bound[0]) {
+                scopedValue = null;
+            }
+        } catch (Throwable ex) {
+            scopedValue = null;
+        }
+        sScopedValue = scopedValue;
+        sWhere = scopedValue != null ? where : null;
+        sRun = scopedValue != null ? run : null;
+        sOrElse = scopedValue != null ? orElse : null;
+        sThreadContext = scopedValue == null ? new ThreadLocal<ContextHandle>() : null;
+    }
+
+    private CurrentContext() {
+        // Static methods only
+    }
+
+    /**
+     * Get the current context.
+     * @return the context bound by the innermost run() or call(), or null if none.
+     */
+    public static ContextHandle get() {
+        if (sScopedValue == null) {
+            return sThreadContext.get();
+        }
+        try {
+            Object handle = (Object) sOrElse.invokeExact(sScopedValue,UNBOUND);
+            return handle == UNBOUND ? null : (ContextHandle) handle;
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Get the current context, failing if there is none.
+     * @return the context bound by the innermost run() or call()
+     * @throws IllegalStateException if no context is bound.
+     */
+    public static ContextHandle require() {
+        ContextHandle handle = get();
+        if (handle == null) {
+            throw new IllegalStateException("No current context");
+        }
+        return handle;
+    }
+
+    /**
+     * Check if this code is running with a current context.
+     * @return True if a context is bound.
+     */
+    public static boolean isBound() {
+        return get() != null;
+    }
+
+    /**
+     * Run task with the specified context as current context.
+     * @param handle Context to bind
+     * @param task Task to run
+     */
+    public static void run(ContextHandle handle, Runnable task) {
+        if (sScopedValue == null) {
+            ContextHandle previous = sThreadContext.get();
+            sThreadContext.set(handle);
+            try {
+                task.run();
+            } finally {
+                if (previous == null) {
+                    sThreadContext.remove();
+                } else {
+                    sThreadContext.set(previous);
+                }
+            }
+            return;
+        }
+        try {
+            Object carrier = (Object) sWhere.invokeExact(sScopedValue,(Object) handle);
+            sRun.invokeExact(carrier,task);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Call task with the specified context as current context.
+     * @param handle Context to bind
+     * @param task Task to call
+     * @return the result of the task
+     * @throws Exception if thrown by the task.
+     */
+    public static <T> T call(ContextHandle handle, final Callable<T> task) throws Exception {
+        final Object[] result = new Object[1];
+        final Exception[] failure = new Exception[1];
+        run(handle,new Runnable() {
+            public void run() {
+                try {
+                    result[0] = task.call();
+                } catch (RuntimeException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    failure[0] = ex;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        @SuppressWarnings("unchecked")
+        T value = (T) result[0];
+        return value;
+    }
+
+    /**
+     * Wrap task so that it runs with the current context, wherever it is run.
+     * Useful for tasks submitted to executors, which do not inherit the context.
+     * @param task Task to wrap
+     * @return task bound to the current context, or task itself if there is no current context.
+     */
+    public static Runnable wrap(final Runnable task) {
+        final ContextHandle handle = get();
+        if (handle == null) return task;
+        return new Runnable() {
+            public void run() {
+                CurrentContext.run(handle,task);
+            }
+        };
+    }
+
+    /**
+     * Wrap task so that it is called with the current context, wherever it is called.
+     * @param task Task to wrap
+     * @return task bound to the current context, or task itself if there is no current context.
+     */
+    public static <T> Callable<T> wrap(final Callable<T> task) {
+        final ContextHandle handle = get();
+        if (handle == null) return task;
+        return new Callable<T>() {
+            public T call() throws Exception {
+                return CurrentContext.call(handle,task);
+            }
+        };
+    }
+
+    private static RuntimeException rethrow(Throwable ex) {
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        }
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        throw new IllegalStateException(ex);
+    }
+}
@@ -0,0 +1,189 @@
+package com.faradice.faraframe.context;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <H1> FrozenContextMap - immutable snapshot of a ContextMap. </H1>
+ *
+ * Holds every key visible from one context together with it's resolved value, as
+ * returned by ContextMap.freeze().  Keys and values are kept in parallel arrays,
+ * indexed by an open addressed table that is never more than half full, so lookups
+ * usually need a single probe and never allocate.
+ *
+ * @param <K>
+ * @param <V>
+ */
+class FrozenContextMap<K,V> extends AbstractMap<K,V> {
+    private final Object[] mKeys;
+    private final Object[] mValues;
+    private final int[] mHashes;
+    /**
+     * Index+1 into mKeys for each slot, 0 marks an empty slot.
+     */
+    private final int[] mTable;
+    private final int mMask;
+
+    FrozenContextMap(Object[] keys, Object[] values) {
+        mKeys = keys;
+        mValues = values;
+        mHashes = new int[keys.length];
+        int capacity = 2;
+        while (capacity < keys.length*2) {
+            capacity *= 2;
+        }
+        mTable = new int[capacity];
+        mMask = capacity-1;
+        for (int i = 0; i < keys.length; i++) {
+            int h = hash(keys[i]);
+            mHashes[i] = h;
+            int slot = h & mMask;
+            while (mTable[slot] != 0) {
+                slot = (slot+1) & mMask;
+            }
+            mTable[slot] = i+1;
+        }
+    }
+
+    private static int hash(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private int indexOf(Object key) {
+        int h = hash(key);
+        for (int slot = h & mMask;; slot = (slot+1) & mMask) {
+            int index = mTable[slot]-1;
+            if (index < 0) return -1;
+            if (mHashes[index] == h) {
+                Object k = mKeys[index];
+                if (k == key || (key != null && key.equals(k))) return index;
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int index = indexOf(key);
+        return index >= 0 ? (V) mValues[index] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        for (Object v: mValues) {
+            if (v == value || (value != null && value.equals(v))) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return mKeys.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mKeys.length == 0;
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<K>() {
+            @Override
+            public Iterator<K> iterator() {
+                return new ArrayIterator<K>(mKeys);
+            }
+
+            @Override
+            public int size() {
+                return mKeys.length;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return indexOf(o) >= 0;
+            }
+        };
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ArrayIterator<V>(mValues);
+            }
+
+            @Override
+            public int size() {
+                return mValues.length;
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            @Override
+            public Iterator<Map.Entry<K,V>> iterator() {
+                return new Iterator<Map.Entry<K,V>>() {
+                    private int mNext;
+
+                    public boolean hasNext() {
+                        return mNext < mKeys.length;
+                    }
+
+                    @SuppressWarnings("unchecked")
+                    public Map.Entry<K,V> next() {
+                        if (mNext >= mKeys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        int i = mNext++;
+                        return new AbstractMap.SimpleImmutableEntry<K,V>((K) mKeys[i],(V) mValues[i]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return mKeys.length;
+            }
+        };
+    }
+
+    /**
+     * Read only iterator over an array.
+     */
+    private static final class ArrayIterator<E> implements Iterator<E> {
+        private final Object[] mArray;
+        private int mNext;
+
+        ArrayIterator(Object[] array) {
+            mArray = array;
+        }
+
+        public boolean hasNext() {
+            return mNext < mArray.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (mNext >= mArray.length) {
+                throw new NoSuchElementException();
+            }
+            return (E) mArray[mNext++];
+        }
+    }
+}
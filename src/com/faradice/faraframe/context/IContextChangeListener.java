@@ -0,0 +1,19 @@
+package com.faradice.faraframe.context;
+
+import java.util.List;
+
+/**
+ * <H1> IContextChangeListener - observe changes of ContextMap and ContextList bindings. </H1>
+ *
+ * Registered with a ContextChangeNotifier.  Changes are delivered in batches on the
+ * executor of the notifier, never from within put(), add() or remove().
+ */
+public interface IContextChangeListener {
+
+    /**
+     * Bindings have changed.
+     * @param events One event for each modified map or list and context, in the order
+     * they were first modified within the batch.
+     */
+    public void contextsChanged(List<ContextChangeEvent> events);
+}
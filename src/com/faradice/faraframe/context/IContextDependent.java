@@ -0,0 +1,20 @@
+package com.faradice.faraframe.context;
+
+/**
+ * <H1> IContextDependent - declare dependencies between context objects. </H1>
+ *
+ * Implemented by an IContextObject that uses other context objects from it's
+ * init() method.  ContextObjectContainer initializes all dependencies before the
+ * dependent object and destroys them after it.
+ */
+public interface IContextDependent {
+
+    /**
+     * Get the types of context objects that must be initialized before this one.
+     * Each type must match exactly one object in the same container, either by
+     * class or by a super class or interface.
+     * This method is called after setContext() but before init().
+     * @return dependency types, never null.
+     */
+    public Class<?>[] getDependencies();
+}
@@ -0,0 +1,18 @@
+package com.faradice.faraframe.context;
+
+/**
+ * <H1> IReclaimListener - observe reclamation of garbage collected contexts. </H1>
+ *
+ * Notified by ContextReclaimer each time a batch of bindings for contexts that
+ * are no longer reachable has been removed from a ContextMap or ContextList.
+ */
+public interface IReclaimListener {
+
+    /**
+     * Bindings of garbage collected contexts have been removed.
+     * @param reclaimer The reclaimer of the map or list the bindings were removed from.
+     * @param contexts Number of contexts reclaimed in this batch.
+     * @param bindings Number of bindings (keys or list values) removed in this batch.
+     */
+    public void contextsReclaimed(ContextReclaimer reclaimer, int contexts, int bindings);
+}
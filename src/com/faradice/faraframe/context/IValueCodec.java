@@ -0,0 +1,30 @@
+package com.faradice.faraframe.context;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <H1> IValueCodec - convert bound values to and from bytes. </H1>
+ *
+ * Used by ContextSnapshotWriter and ContextSnapshot to store the values of
+ * ContextMap bindings.  Null values are handled by the snapshot itself and are
+ * never passed to a codec.
+ *
+ * @param <V>
+ */
+public interface IValueCodec<V> {
+
+    /**
+     * Encode value.
+     * @param value Value to encode, never null.
+     * @return the encoded bytes
+     */
+    public byte[] encode(V value);
+
+    /**
+     * Decode value.
+     * @param buffer Holds exactly the bytes returned by encode(), from position to limit.
+     * The buffer may be backed by a memory mapped file and is only valid during the call.
+     * @return the decoded value
+     */
+    public V decode(ByteBuffer buffer);
+}
@@ -0,0 +1,120 @@
+package com.faradice.faraframe.context;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <H1> ResolvedValueCache - memoize context resolution. </H1>
+ *
+ * Bounded cache of resolved values for (context, key) pairs used by ContextMap.
+ * Entries are stamped with the version of the owning map when stored and are
+ * ignored once the map has been modified, so invalidation costs nothing on write.
+ *
+ * The cache is two way set associative: each entry can live in one of two slots.
+ * New entries go to the first slot and demote the previous occupant to the second,
+ * which gives an approximate LRU eviction without any bookkeeping allocation.
+ *
+ * Entries are immutable and stored with a single reference write, so concurrent
+ * readers, as allowed by ContextMap.get(), see either a complete entry or none.
+ * A race can only lose a store or a promotion, never return another key's value.
+ * Keys are compared with equals(), so the cache is only used for maps whose key
+ * map uses equals() as well.
+ */
+class ResolvedValueCache {
+
+    /**
+     * Returned by get() when no valid entry exists.
+     */
+    static final Object MISS = new Object();
+
+    private final Entry[] mEntries;
+    private final int mMask;
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+
+    /**
+     * Create cache holding at least maxEntries entries.
+     * @param maxEntries Number of entries, rounded up to a power of two.
+     */
+    ResolvedValueCache(int maxEntries) {
+        int capacity = 2;
+        while (capacity < maxEntries) {
+            capacity *= 2;
+        }
+        mEntries = new Entry[capacity];
+        mMask = capacity-2;
+    }
+
+    /**
+     * Get cached resolution.
+     * @param handleId Id of context
+     * @param key Key resolved, never null.
+     * @param version Current version of the map
+     * @return the cached value or MISS.
+     */
+    Object get(int handleId, Object key, long version) {
+        int slot = set(handleId,key);
+        Entry entry = mEntries[slot];
+        if (entry != null && entry.matches(handleId,key,version)) {
+            mHits.increment();
+            return entry.mValue;
+        }
+        Entry second = mEntries[slot+1];
+        if (second != null && second.matches(handleId,key,version)) {
+            mHits.increment();
+            // Swap, a racing reader may miss the entry for a moment but never sees a wrong one.
+            mEntries[slot+1] = entry;
+            mEntries[slot] = second;
+            return second.mValue;
+        }
+        mMisses.increment();
+        return MISS;
+    }
+
+    /**
+     * Store resolved value.
+     * @param handleId Id of context
+     * @param key Key resolved, never null.
+     * @param version Version of the map the value was resolved against
+     * @param value Resolved value
+     */
+    void put(int handleId, Object key, long version, Object value) {
+        int slot = set(handleId,key);
+        Entry current = mEntries[slot];
+        if (current != null && current.mVersion == version) {
+            // Keep current entry as second choice, unless it is stale.
+            mEntries[slot+1] = current;
+        }
+        mEntries[slot] = new Entry(handleId,key,value,version);
+    }
+
+    long getHits() {
+        return mHits.sum();
+    }
+
+    long getMisses() {
+        return mMisses.sum();
+    }
+
+    private int set(int handleId, Object key) {
+        int h = key.hashCode()*31 + handleId*0x9E3779B9;
+        return (h ^ (h >>> 16)) & mMask;
+    }
+
+    private static final class Entry {
+        final int mHandleId;
+        final Object mKey;
+        final Object mValue;
+        final long mVersion;
+
+        Entry(int handleId, Object key, Object value, long version) {
+            mHandleId = handleId;
+            mKey = key;
+            mValue = value;
+            mVersion = version;
+        }
+
+        boolean matches(int handleId, Object key, long version) {
+            return mHandleId == handleId && mVersion == version && key.equals(mKey);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.faradice.faraframe.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * Log handler that passes records to another handler on a background thread.
+ *
+ * publish() only puts the record in a bounded queue, a writer thread takes
+ * records from the queue in batches, publishes them to the target handler and
+ * flushes the target once per batch.  Threads that log never wait for the
+ * target, unless the queue is full and the policy is to block.
+ *
+ * Configured from the logging configuration when created without arguments:
+ *
+ * com.faradice.faraframe.log.AsyncHandler.target = java.util.logging.FileHandler
+ * com.faradice.faraframe.log.AsyncHandler.queue_size = 10000
+ * com.faradice.faraframe.log.AsyncHandler.full_queue = drop_below_level
+ * com.faradice.faraframe.log.AsyncHandler.drop_level = WARNING
+ *
+ * Queued records are written when the handler is closed, and when the JVM
+ * shuts down.
+ * See java.util.logging.Handler for further details
+ */
+public class AsyncHandler extends Handler {
+
+    /**
+     * What publish() does when the queue is full.
+     */
+    public enum FullQueuePolicy {
+        /**
+         * Wait until the writer has made room.
+         */
+        BLOCK,
+        /**
+         * Drop records below the drop level, wait for room for other records.
+         */
+        DROP_BELOW_LEVEL,
+        /**
+         * Discard the oldest queued record.
+         */
+        DISCARD_OLDEST
+    }
+
+    /**
+     * Maximum number of records written between flushes of the target.
+     */
+    private static final int MAX_BATCH = 1024;
+
+    private final Handler target;
+    private final ArrayBlockingQueue<LogRecord> queue;
+    private final FullQueuePolicy policy;
+    private final Level dropLevel;
+    private final Thread writer;
+    private final Thread shutdownHook;
+    private final AtomicLong droppedRecords = new AtomicLong();
+    /**
+     * Records accepted by publish(), and records written or discarded since.
+     * flush() waits until processed catches up with accepted.
+     */
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final Object progress = new Object();
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor, reads target, queue_size, full_queue, drop_level and level
+     * from the logging configuration.
+     * See java.util.logging.Handler for further details
+     */
+    public AsyncHandler() {
+        this(createTarget(), queueSize(), fullQueuePolicy(), dropLevel());
+        String stringLevel = LogManager.getLogManager().getProperty(AsyncHandler.class.getName() + ".level");
+        try {
+            setLevel(Level.parse(stringLevel.trim()));
+        } catch (Exception ex) {
+            setLevel(Level.ALL);
+        }
+    }
+
+    /**
+     * Constructor
+     * @param target handler receiving all records.
+     * @param queueSize maximum number of records waiting to be written.
+     * @param policy what to do when the queue is full.
+     * @param dropLevel with FullQueuePolicy.DROP_BELOW_LEVEL, records below this level are dropped when the queue is full.
+     */
+    public AsyncHandler(Handler target, int queueSize, FullQueuePolicy policy, Level dropLevel) {
+        this.target = target;
+        this.queue = new ArrayBlockingQueue<LogRecord>(Math.max(1, queueSize));
+        this.policy = policy;
+        this.dropLevel = dropLevel;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "AsyncHandler-writer");
+        writer.setDaemon(true);
+        writer.start();
+        shutdownHook = new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }, "AsyncHandler-shutdown");
+        try {
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } catch (IllegalStateException ex) {
+            // Already shutting down, records are written when closed.
+        }
+    }
+
+    /**
+     * See java.util.logging.Handler for further details
+     */
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        // The caller can only be inferred on the thread that logged.
+        record.getSourceClassName();
+
+        accepted.incrementAndGet();
+        if (queue.offer(record)) {
+            if (closed && !writer.isAlive()) {
+                // close() may have drained the queue before this record was added.
+                writeRemaining();
+            }
+            return;
+        }
+        if (policy == FullQueuePolicy.DISCARD_OLDEST || Thread.currentThread() == writer) {
+            // The writer must never wait for itself, when the target logs.
+            while (!queue.offer(record)) {
+                if (queue.poll() != null) {
+                    droppedRecords.incrementAndGet();
+                    processed(1);
+                }
+            }
+        } else if (policy == FullQueuePolicy.DROP_BELOW_LEVEL && record.getLevel().intValue() < dropLevel.intValue()) {
+            droppedRecords.incrementAndGet();
+            processed(1);
+        } else {
+            try {
+                while (!queue.offer(record, 100, TimeUnit.MILLISECONDS)) {
+                    if (!writer.isAlive()) {
+                        // Nobody will make room, write on this thread instead.
+                        writeRemaining();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                droppedRecords.incrementAndGet();
+                processed(1);
+            }
+        }
+    }
+
+    /**
+     * Wait until all records published so far have been written, then flush the target.
+     * See java.util.logging.Handler for further details
+     */
+    @Override
+    public void flush() {
+        if (Thread.currentThread() != writer) {
+            long goal = accepted.get();
+            synchronized (progress) {
+                while (processed.get() < goal && writer.isAlive()) {
+                    try {
+                        progress.wait(100);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        target.flush();
+    }
+
+    /**
+     * Stop accepting records, write all queued records and close the target.
+     * See java.util.logging.Handler for further details
+     */
+    @Override
+    public void close() throws SecurityException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ex) {
+                // Shutting down, the hook is running or about to.
+            }
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        writeRemaining();
+        target.close();
+    }
+
+    /**
+     * Get the number of records that were dropped or discarded because the queue was full.
+     * @return number of dropped records since this handler was created.
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    /**
+     * Get the number of records waiting to be written.
+     * @return the queue length
+     */
+    public int getQueuedRecords() {
+        return queue.size();
+    }
+
+    /**
+     * Get the handler records are written to.
+     * @return the target handler
+     */
+    public Handler getTarget() {
+        return target;
+    }
+
+    /**
+     * Body of the writer thread, runs until closed and the queue is empty.
+     */
+    private void write() {
+        List<LogRecord> batch = new ArrayList<LogRecord>(MAX_BATCH);
+        while (true) {
+            try {
+                LogRecord first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException ex) {
+                if (closed) {
+                    return;
+                }
+                continue;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            writeBatch(batch);
+        }
+    }
+
+    /**
+     * Write records left in the queue on the calling thread, used when the
+     * writer has stopped.
+     */
+    private synchronized void writeRemaining() {
+        List<LogRecord> batch = new ArrayList<LogRecord>();
+        while (queue.drainTo(batch, MAX_BATCH) > 0) {
+            writeBatch(batch);
+        }
+    }
+
+    /**
+     * Publish batch to the target, flush the target and clear batch.  Errors,
+     * including Errors thrown by the target or it's formatter, are reported so
+     * they never stop the writer.
+     */
+    private void writeBatch(List<LogRecord> batch) {
+        for (LogRecord record : batch) {
+            try {
+                target.publish(record);
+            } catch (Throwable ex) {
+                reportError(null, ex instanceof Exception ? (Exception) ex : new RuntimeException(ex),
+                    ErrorManager.WRITE_FAILURE);
+            }
+        }
+        try {
+            target.flush();
+        } catch (Throwable ex) {
+            reportError(null, ex instanceof Exception ? (Exception) ex : new RuntimeException(ex),
+                ErrorManager.FLUSH_FAILURE);
+        }
+        processed(batch.size());
+        batch.clear();
+    }
+
+    private void processed(int count) {
+        processed.addAndGet(count);
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+    }
+
+    private static Handler createTarget() {
+        String name = LogManager.getLogManager().getProperty(AsyncHandler.class.getName() + ".target");
+        if (name == null || name.trim().length() == 0) {
+            throw new IllegalArgumentException(AsyncHandler.class.getName() + ".target is not set");
+        }
+        try {
+            return (Handler) ClassLoader.getSystemClassLoader().loadClass(name.trim()).getConstructor().newInstance();
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("Can not create target handler " + name, ex);
+        }
+    }
+
+    private static int queueSize() {
+        try {
+            return Integer.parseInt(LogManager.getLogManager().getProperty(AsyncHandler.class.getName() + ".queue_size").trim());
+        } catch (Exception ex) {
+            return 10000;
+        }
+    }
+
+    private static FullQueuePolicy fullQueuePolicy() {
+        try {
+            return FullQueuePolicy.valueOf(LogManager.getLogManager().getProperty(AsyncHandler.class.getName() + ".full_queue").trim().toUpperCase());
+        } catch (Exception ex) {
+            return FullQueuePolicy.BLOCK;
+        }
+    }
+
+    private static Level dropLevel() {
+        try {
+            return Level.parse(LogManager.getLogManager().getProperty(AsyncHandler.class.getName() + ".drop_level").trim());
+        } catch (Exception ex) {
+            return Level.WARNING;
+        }
+    }
+
+}
@@ -16,6 +16,17 @@ package com.faradice.faraframe.log;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.ErrorManager;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -27,11 +38,69 @@ import com.faradice.faraframe.util.DeletgatePrintStream;
 /**
  * Log handler
  * See java.util.logging.Handler for further details    
+ * 
+ * Keeps the most recent records in a fixed size ring buffer.  publish() may be
+ * called from any number of threads at once, it never locks and never copies
+ * buffered records.
+ * 
+ * Listeners are notified on the logging thread unless asynchronous dispatch is
+ * enabled, see setAsyncDispatch().  It can also be enabled in the logging
+ * configuration with the properties async_queue_size, async_overflow (block,
+ * drop_oldest or sample) and async_sample_rate.
+ * 
+ * Text written to System.out and System.err is split into lines, each thread
+ * keeping its own partial line.  Completed lines are collected for
+ * capture_interval milliseconds and published together, up to
+ * capture_lines_per_record lines in one record.  At most capture_max_pending
+ * lines wait at a time, further lines are dropped and counted in the next record.
+ * With async_tee_size set, the original console streams are written by a
+ * background thread through a ring of that many bytes, see DeletgatePrintStream.
  * @author hii
  * @version $Id: BufferedRecordHandler.java,v 1.7 2009/05/18 14:39:24 gudmfr Exp $
  */
 public class BufferedRecordHandler extends Handler {
 
+    /**
+     * What publish() does when the queue of an asynchronous dispatcher is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until the dispatcher has made room.
+         */
+        BLOCK,
+        /**
+         * Discard the oldest queued notification.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard new notifications, except one in every sample rate which
+         * replaces the oldest queued notification.
+         */
+        SAMPLE
+    }
+
+    /**
+     * Maximum number of records delivered in one batch by the dispatcher.
+     */
+    private static final int MAX_BATCH = 512;
+
+    /**
+     * Longest line published as one, longer lines are split into lines of this length.
+     */
+    private static final int MAX_LINE = 64 * 1024;
+
+    /**
+     * Publishes lines captured from System.out and System.err.
+     */
+    private static final ScheduledExecutorService captureTimer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BufferedRecordHandler-capture");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
 	/**
 	 * Level for normal logging
 	 */
@@ -43,10 +112,17 @@ public class BufferedRecordHandler extends Handler {
     public static Level LEVEL_ERR;
 
     private int recordBufferSize;
+    private long captureInterval;
+    private int captureLinesPerRecord;
+    private int captureMaxPending;
+    private int teeRingSize;
     private TextRecordOutputStream errorStream = null;
     private TextRecordOutputStream outputStream = null;
-    private ArrayList<LogListener> loggListeners = new ArrayList<LogListener>(1);
-    private ArrayList<LogRecord> recordList;
+    private List<LogListener> loggListeners = new CopyOnWriteArrayList<LogListener>();
+    private List<LogBatchListener> batchListeners = new CopyOnWriteArrayList<LogBatchListener>();
+    private RecordRingBuffer recordBuffer;
+    private volatile Dispatcher dispatcher;
+    private final AtomicLong droppedNotifications = new AtomicLong();
 
     /**
      * Constructor 
@@ -71,7 +147,52 @@ public class BufferedRecordHandler extends Handler {
         } catch (Exception ex) {
             recordBufferSize = 5000;
         }
-        recordList = new ArrayList<LogRecord>(recordBufferSize);
+        recordBuffer = new RecordRingBuffer(recordBufferSize);
+
+        // Get the BufferedRecordHandler asynchronous dispatch from logging conf ---------------------------
+        String stringQueueSize = manager.getProperty(cname + ".async_queue_size");
+        if (stringQueueSize != null && stringQueueSize.trim().length() > 0) {
+            OverflowPolicy policy;
+            int sampleRate;
+            try {
+                policy = OverflowPolicy.valueOf(manager.getProperty(cname + ".async_overflow").trim().toUpperCase());
+            } catch (Exception ex) {
+                policy = OverflowPolicy.BLOCK;
+            }
+            try {
+                sampleRate = Integer.parseInt(manager.getProperty(cname + ".async_sample_rate").trim());
+            } catch (Exception ex) {
+                sampleRate = 10;
+            }
+            try {
+                setAsyncDispatch(Integer.parseInt(stringQueueSize.trim()), policy, sampleRate);
+            } catch (NumberFormatException ex) {
+                reportError(null, ex, ErrorManager.GENERIC_FAILURE);
+            }
+        }
+
+        // Get the BufferedRecordHandler capture batching from logging conf -------------------------------
+        try {
+            captureInterval = Long.parseLong(manager.getProperty(cname + ".capture_interval").trim());
+        } catch (Exception ex) {
+            captureInterval = 100;
+        }
+        try {
+            captureLinesPerRecord = Math.max(1, Integer.parseInt(manager.getProperty(cname + ".capture_lines_per_record").trim()));
+        } catch (Exception ex) {
+            captureLinesPerRecord = 100;
+        }
+        try {
+            captureMaxPending = Math.max(1, Integer.parseInt(manager.getProperty(cname + ".capture_max_pending").trim()));
+        } catch (Exception ex) {
+            captureMaxPending = 10000;
+        }
+
+        try {
+            teeRingSize = Integer.parseInt(manager.getProperty(cname + ".async_tee_size").trim());
+        } catch (Exception ex) {
+            teeRingSize = 0;
+        }
 
         // Get the BufferedRecordHandler err_log from logging conf ----------------------------------------
         String stringErrStreamPrefix = manager.getProperty(cname + ".err_prefix");
@@ -91,7 +212,7 @@ public class BufferedRecordHandler extends Handler {
 
         errorStream = new TextRecordOutputStream(LEVEL_ERR, stringErrStreamPrefix);
         errorStream.setEnabled(true);
-        System.setErr(new DeletgatePrintStream(new PrintStream(errorStream), System.err));
+        System.setErr(teeStream(errorStream, System.err));
 
         // Get the BufferedRecordHandler out_log from logging conf ----------------------------------------
 
@@ -112,7 +233,17 @@ public class BufferedRecordHandler extends Handler {
 
         outputStream = new TextRecordOutputStream(LEVEL_OUT, stringOutStreamPrefix);
         outputStream.setEnabled(true);
-        System.setOut(new DeletgatePrintStream(new PrintStream(outputStream), System.out));
+        System.setOut(teeStream(outputStream, System.out));
+    }
+
+    /**
+     * Stream writing to capture inline and to console, asynchronously if async_tee_size is set.
+     */
+    private PrintStream teeStream(OutputStream capture, PrintStream console) {
+        if (teeRingSize > 0) {
+            return new DeletgatePrintStream(new PrintStream(capture), console, teeRingSize);
+        }
+        return new DeletgatePrintStream(new PrintStream(capture), console);
     }
 
     /**
@@ -126,31 +257,49 @@ public class BufferedRecordHandler extends Handler {
             return;
         }
 
-        // If buffer full remove oldest record and notify listeners.
-        if (recordList.size() >= recordBufferSize) {
-            LogRecord tempRecord = recordList.get(0);
-            recordList.remove(0);
-            try {
-                for (int i = 0; i < loggListeners.size(); i++) {
-                    loggListeners.get(i).loggChange(new LogChangeEvent(this, LogChangeEvent.RECORD_ADDED, tempRecord));
-                }
-            } catch (Exception ex) {
-                reportError(null, ex, ErrorManager.WRITE_FAILURE);
+        // Store record in buffer, if buffer full the oldest record is overwritten.
+        LogRecord evicted = recordBuffer.add(record);
+        if (loggListeners.isEmpty() && batchListeners.isEmpty()) {
+            return;
+        }
+
+        Dispatcher currentDispatcher = dispatcher;
+        if (currentDispatcher != null) {
+            currentDispatcher.enqueue(new Change(record, evicted));
+        } else {
+            List<LogRecord> evictedList = Collections.emptyList();
+            if (evicted != null) {
+                evictedList = Collections.singletonList(evicted);
             }
+            notifyListeners(Collections.singletonList(record), evictedList);
         }
+    }
 
-        // Store record in buffer and notify listeners of new record
-        recordList.add(record);
-        if (loggListeners.size() > 0) {
-            try {
-                for (int i = 0; i < loggListeners.size(); i++) {
-                    loggListeners.get(i).loggChange(new LogChangeEvent(this, LogChangeEvent.RECORD_ADDED, record));
+    /**
+     * Notify listeners of evicted and added records.
+     */
+    private void notifyListeners(List<LogRecord> added, List<LogRecord> evicted) {
+        try {
+            if (!loggListeners.isEmpty()) {
+                for (LogRecord rec : evicted) {
+                    LogChangeEvent event = new LogChangeEvent(this, LogChangeEvent.RECORD_REMOVED, rec);
+                    for (LogListener listener : loggListeners) {
+                        listener.loggChange(event);
+                    }
                 }
-            } catch (Exception ex) {
-                reportError(null, ex, ErrorManager.WRITE_FAILURE);
+                for (LogRecord rec : added) {
+                    LogChangeEvent event = new LogChangeEvent(this, LogChangeEvent.RECORD_ADDED, rec);
+                    for (LogListener listener : loggListeners) {
+                        listener.loggChange(event);
+                    }
+                }
+            }
+            for (LogBatchListener listener : batchListeners) {
+                listener.loggChanged(this, added, evicted);
             }
+        } catch (Exception ex) {
+            reportError(null, ex, ErrorManager.WRITE_FAILURE);
         }
-
     }
 
     /**
@@ -158,20 +307,62 @@ public class BufferedRecordHandler extends Handler {
      */
     @Override
     public void flush() {
-        recordList.clear();
+        recordBuffer.clear();
     }
 
     @Override
     public void close() throws SecurityException {
+        errorStream.publishAll();
+        outputStream.publishAll();
+        setSyncDispatch();
         flush();
     }
 
+    /**
+     * Notify listeners on a dispatcher thread instead of the logging thread.
+     * The dispatcher delivers queued records in batches, so a slow listener only
+     * delays notifications and never the threads that log.  Replaces any previous
+     * dispatcher, after it has delivered it's queued records.
+     * @param queueSize maximum number of records waiting to be delivered.
+     * @param policy what to do when the queue is full.
+     * @param sampleRate with OverflowPolicy.SAMPLE, one in this many records is kept when the queue is full.
+     */
+    public synchronized void setAsyncDispatch(int queueSize, OverflowPolicy policy, int sampleRate) {
+        Dispatcher old = dispatcher;
+        dispatcher = new Dispatcher(Math.max(1, queueSize), policy, Math.max(1, sampleRate));
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Notify listeners on the logging thread again.  Records queued by the
+     * dispatcher are delivered before this returns.
+     */
+    public synchronized void setSyncDispatch() {
+        Dispatcher old = dispatcher;
+        dispatcher = null;
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Get the number of records listeners were not notified of because the queue
+     * of the dispatcher was full.  Listeners can catch up using getLoggRecords().
+     * @return number of dropped notifications since this handler was created.
+     */
+    public long getDroppedNotifications() {
+        return droppedNotifications.get();
+    }
+
     /**
      * See java.util.logging.Handler for further details    
-     * @return the records that have been logged.
+     * @return the records that have been logged, oldest first.  This is a consistent
+     * snapshot, records published concurrently are either included in order or left out.
      */
     public LogRecord[] getLoggRecords() {
-        return recordList.toArray(new LogRecord[0]);
+        return recordBuffer.snapshot();
     }
 
     /**
@@ -190,11 +381,180 @@ public class BufferedRecordHandler extends Handler {
         loggListeners.remove(listener);
     }
 
+    /**
+     * Add the given batch listener to our listener list.    
+     * @param listener the listener that will listen to us.
+     */
+    public void addLoggBatchListener(LogBatchListener listener) {
+        batchListeners.add(listener);
+    }
+
+    /**
+     * Remove the given batch listener from our listener list.    
+     * @param listener the listener that will be removed.
+     */
+    public void removeLoggBatchListener(LogBatchListener listener) {
+        batchListeners.remove(listener);
+    }
+
+    /**
+     * A published record and the record it evicted, if any.
+     */
+    private static final class Change {
+        final LogRecord added;
+        final LogRecord evicted;
+
+        Change(LogRecord added, LogRecord evicted) {
+            this.added = added;
+            this.evicted = evicted;
+        }
+    }
+
+    /**
+     * Delivers queued changes to the listeners from a daemon thread.
+     */
+    private class Dispatcher implements Runnable {
+        private final ArrayBlockingQueue<Change> queue;
+        private final OverflowPolicy policy;
+        private final int sampleRate;
+        private final AtomicLong overflows = new AtomicLong();
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        Dispatcher(int queueSize, OverflowPolicy policy, int sampleRate) {
+            this.queue = new ArrayBlockingQueue<Change>(queueSize);
+            this.policy = policy;
+            this.sampleRate = sampleRate;
+            thread = new Thread(this, "BufferedRecordHandler-dispatcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void enqueue(Change change) {
+            if (!running) {
+                // Shut down, shutdown() may already have drained the queue.
+                deliver(Collections.singletonList(change));
+                return;
+            }
+            if (queue.offer(change)) {
+                if (!running && !thread.isAlive()) {
+                    deliverRemaining();
+                }
+                return;
+            }
+            if (policy == OverflowPolicy.BLOCK && Thread.currentThread() != thread) {
+                try {
+                    while (!queue.offer(change, 100, TimeUnit.MILLISECONDS)) {
+                        if (!running) {
+                            deliver(Collections.singletonList(change));
+                            return;
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    droppedNotifications.incrementAndGet();
+                }
+            } else if (policy == OverflowPolicy.SAMPLE && overflows.incrementAndGet() % sampleRate != 0) {
+                droppedNotifications.incrementAndGet();
+            } else {
+                // Discard oldest, also for BLOCK when a listener logs from the dispatcher thread.
+                while (!queue.offer(change)) {
+                    if (queue.poll() != null) {
+                        droppedNotifications.incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        public void run() {
+            List<Change> batch = new ArrayList<Change>(MAX_BATCH);
+            while (true) {
+                try {
+                    Change first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (!running) {
+                            return;
+                        }
+                        continue;
+                    }
+                    batch.add(first);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                queue.drainTo(batch, MAX_BATCH - 1);
+                deliver(batch);
+                batch.clear();
+            }
+        }
+
+        /**
+         * Notify listeners of a batch of changes.
+         */
+        private void deliver(List<Change> batch) {
+            List<LogRecord> added = new ArrayList<LogRecord>(batch.size());
+            List<LogRecord> evicted = new ArrayList<LogRecord>();
+            for (Change change : batch) {
+                if (change.evicted != null) {
+                    evicted.add(change.evicted);
+                }
+                added.add(change.added);
+            }
+            notifyListeners(Collections.unmodifiableList(added),
+                    evicted.isEmpty() ? Collections.<LogRecord>emptyList() : Collections.unmodifiableList(evicted));
+        }
+
+        /**
+         * Deliver changes left in the queue on the calling thread, after the dispatcher thread has stopped.
+         */
+        private synchronized void deliverRemaining() {
+            List<Change> batch = new ArrayList<Change>();
+            while (queue.drainTo(batch, MAX_BATCH) > 0) {
+                deliver(batch);
+                batch.clear();
+            }
+        }
+
+        /**
+         * Stop after all queued changes have been delivered.
+         */
+        void shutdown() {
+            running = false;
+            if (Thread.currentThread() == thread) {
+                return;
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            deliverRemaining();
+        }
+    }
+
+    /**
+     * Stream capturing System.out or System.err as log records.
+     */
     private class TextRecordOutputStream extends OutputStream {
 
         private Level level;
         private String prefix;
         private boolean isEnabled = false;
+        /**
+         * Partial line of each writing thread, each guarded by itself.
+         */
+        private final ConcurrentHashMap<Thread, PartialLine> partialLines =
+            new ConcurrentHashMap<Thread, PartialLine>();
+        /**
+         * Completed lines waiting to be published, guarded by itself.
+         */
+        private final List<String> pendingLines = new ArrayList<String>();
+        private long droppedLines = 0;
+        private boolean publishScheduled = false;
+        private final Runnable publisher = new Runnable() {
+            public void run() {
+                publishPending();
+            }
+        };
 
         TextRecordOutputStream(Level level, String prefix) {
             this.level = level;
@@ -207,31 +567,247 @@ public class BufferedRecordHandler extends Handler {
 
         @Override
         public void write(int b) {
-            /* Nothing to do*/
+            if (!isEnabled) {
+                return;
+            }
+            PartialLine partial = partial();
+            synchronized (partial) {
+                if (b == '\n') {
+                    completeLine(partial, partial.bytes, 0, 0);
+                } else {
+                    partial.append((byte) b);
+                    if (partial.length >= MAX_LINE) {
+                        completeLine(partial, partial.bytes, 0, 0);
+                    } else if (partial.length == 1) {
+                        schedulePublish();
+                    }
+                }
+            }
         }
 
         @Override
         public void write(byte b[]) {
-            if (isEnabled) {
-                String message = new String(b);
-                if (message.trim().length() > 0) {
-                    publish(new LogRecord(level, prefix + message));
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(byte b[], int off, int len) {
+            if (!isEnabled) {
+                return;
+            }
+            PartialLine partial = partial();
+            synchronized (partial) {
+                int start = off;
+                int end = off + len;
+                for (int i = off; i < end; i++) {
+                    if (b[i] == '\n') {
+                        start = completeLongLines(partial, b, start, i - start);
+                        completeLine(partial, b, start, i - start);
+                        start = i + 1;
+                    }
+                }
+                start = completeLongLines(partial, b, start, end - start);
+                if (start < end) {
+                    boolean started = partial.length == 0;
+                    partial.append(b, start, end - start);
+                    if (started) {
+                        // Published later if the thread exits before ending the line.
+                        schedulePublish();
+                    }
                 }
             }
         }
 
+        /**
+         * Complete lines of MAX_LINE bytes as long as partial followed by
+         * b[off..off+len) is longer than that.
+         * @return the offset of the remaining bytes
+         */
+        private int completeLongLines(PartialLine partial, byte b[], int off, int len) {
+            while (partial.length + len > MAX_LINE) {
+                int count = MAX_LINE - partial.length;
+                completeLine(partial, b, off, count);
+                off += count;
+                len -= count;
+            }
+            return off;
+        }
+
+        /**
+         * Move the calling thread's partial line to the pending lines.
+         */
         @Override
-        public void write(byte b[], int off, int len) {
-            if (isEnabled) {
-                String message = new String(b, off, len);
-                if (message.trim().length() > 0) {
-                    publish(new LogRecord(level, prefix + message));
+        public void flush() {
+            PartialLine partial = partialLines.get(Thread.currentThread());
+            if (partial != null) {
+                synchronized (partial) {
+                    if (partial.length > 0) {
+                        completeLine(partial, partial.bytes, 0, 0);
+                    }
+                }
+            }
+        }
+
+        private PartialLine partial() {
+            Thread thread = Thread.currentThread();
+            PartialLine partial = partialLines.get(thread);
+            if (partial == null) {
+                partial = new PartialLine();
+                partialLines.put(thread, partial);
+            }
+            return partial;
+        }
+
+        /**
+         * Complete the partial lines of threads that have exited, or of all
+         * threads when all is true.
+         *
+         * @return true if a live thread still has a partial line
+         */
+        private boolean completePartialLines(boolean all) {
+            boolean unfinished = false;
+            for (Map.Entry<Thread, PartialLine> entry : partialLines.entrySet()) {
+                boolean alive = entry.getKey().isAlive();
+                PartialLine partial = entry.getValue();
+                synchronized (partial) {
+                    if (partial.length > 0) {
+                        if (all || !alive) {
+                            completeLine(partial, partial.bytes, 0, 0);
+                        } else {
+                            unfinished = true;
+                        }
+                    }
+                }
+                if (!alive) {
+                    partialLines.remove(entry.getKey());
+                }
+            }
+            return unfinished;
+        }
+
+        /**
+         * Complete the line in partial followed by b[off..off+len).
+         */
+        private void completeLine(PartialLine partial, byte b[], int off, int len) {
+            String line;
+            if (partial.length == 0) {
+                line = new String(b, off, len);
+            } else {
+                if (len > 0) {
+                    partial.append(b, off, len);
+                }
+                line = new String(partial.bytes, 0, partial.length);
+                partial.reset();
+            }
+            if (line.trim().length() == 0) {
+                return;
+            }
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            synchronized (pendingLines) {
+                if (pendingLines.size() >= captureMaxPending) {
+                    droppedLines++;
+                    return;
+                }
+                pendingLines.add(line);
+            }
+            schedulePublish();
+        }
+
+        private void schedulePublish() {
+            synchronized (pendingLines) {
+                if (publishScheduled) {
+                    return;
+                }
+                publishScheduled = true;
+            }
+            captureTimer.schedule(publisher, captureInterval, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Publish all captured output, including the unterminated lines of
+         * threads that are still running.
+         */
+        void publishAll() {
+            completePartialLines(true);
+            publishPending();
+        }
+
+        /**
+         * Publish the pending lines, captureLinesPerRecord lines in each record.
+         * The partial lines of threads that have exited are published too, while
+         * a running thread has a partial line publishing is scheduled again.
+         */
+        void publishPending() {
+            synchronized (pendingLines) {
+                publishScheduled = false;
+            }
+            boolean unfinished = completePartialLines(false);
+            List<String> lines;
+            long dropped;
+            synchronized (pendingLines) {
+                lines = new ArrayList<String>(pendingLines);
+                pendingLines.clear();
+                dropped = droppedLines;
+                droppedLines = 0;
+            }
+            StringBuilder message = new StringBuilder();
+            for (int i = 0; i < lines.size(); i += captureLinesPerRecord) {
+                message.setLength(0);
+                int last = Math.min(lines.size(), i + captureLinesPerRecord);
+                for (int j = i; j < last; j++) {
+                    if (j > i) {
+                        message.append('\n');
+                    }
+                    message.append(prefix).append(lines.get(j));
+                }
+                if (dropped > 0 && last == lines.size()) {
+                    message.append('\n').append(prefix).append("... ").append(dropped).append(" lines dropped");
                 }
+                publish(new LogRecord(level, message.toString()));
+            }
+            if (unfinished) {
+                schedulePublish();
             }
         }
 
     } // end inner class TextOutputStream
 
+    /**
+     * Bytes of a line written by one thread, waiting for the end of the line.
+     */
+    private static final class PartialLine {
+        byte[] bytes = new byte[128];
+        int length = 0;
+
+        void append(byte b[], int off, int len) {
+            ensureCapacity(length + len);
+            System.arraycopy(b, off, bytes, length, len);
+            length += len;
+        }
+
+        void append(byte b) {
+            ensureCapacity(length + 1);
+            bytes[length++] = b;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                byte[] grown = new byte[Math.max(capacity, bytes.length * 2)];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+        }
+
+        void reset() {
+            length = 0;
+            if (bytes.length > 8192) {
+                bytes = new byte[128];
+            }
+        }
+    }
+
     private static class StreamLevel extends Level {
         private static final long serialVersionUID = 3618136732311107381L;
 
@@ -0,0 +1,133 @@
+package com.faradice.faraframe.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with logarithmic buckets.
+ *
+ * Each power of two is split into 16 buckets, so a percentile is reported with
+ * at most 1/16 (about 6%) relative error, over the whole range of long values.
+ * Recording is lock free and never allocates, it can be done from any number
+ * of threads at once.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     * @param nanos the duration, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the longest recorded duration in nanoseconds, 0 if none
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get a percentile of the recorded durations.
+     * @param percentile between 0 and 100, e.g. 99.9
+     * @return the upper bound of the bucket holding the percentile in nanoseconds,
+     * never more than getMax(), 0 if nothing has been recorded.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100.0, percentile) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Copy this histogram, optionally resetting it.  Durations recorded while
+     * resetting are either in the copy or left in this histogram, never lost.
+     * @param reset True to start counting from zero again
+     * @return the copy
+     */
+    public LatencyHistogram snapshot(boolean reset) {
+        LatencyHistogram copy = new LatencyHistogram();
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = reset ? counts.getAndSet(i, 0) : counts.get(i);
+            copy.counts.set(i, n);
+            total += n;
+        }
+        if (reset) {
+            count.addAndGet(-total);
+        }
+        copy.count.set(total);
+        copy.max.set(reset ? max.getAndSet(0) : max.get());
+        return copy;
+    }
+
+    /**
+     * Summary of the recorded durations, e.g. "n=120 p50=(1ms 200µs) ... max=(3ms 1µs)".
+     */
+    @Override
+    public String toString() {
+        return "n=" + getCount()
+            + " p50=" + Log.formatDuration(getPercentile(50)).trim()
+            + " p99=" + Log.formatDuration(getPercentile(99)).trim()
+            + " p999=" + Log.formatDuration(getPercentile(99.9)).trim()
+            + " max=" + Log.formatDuration(getMax()).trim();
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        long width = 1L << (exponent - SUB_BITS);
+        return lower + width - 1 < 0 ? Long.MAX_VALUE : lower + width - 1;
+    }
+}
@@ -10,8 +10,21 @@
  */
 package com.faradice.faraframe.log;
 
+import java.lang.StackWalker.StackFrame;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 
 
@@ -20,13 +33,24 @@ import java.util.logging.Logger;
  * i.e. it expects pattern and varargs that are passed into String.format function to create the log string The delayed
  * string concatenation is faster performing in case nothing is logged. 
  * 
+ * Calls with one to three arguments do not allocate an argument array, and calls taking
+ * a Supplier do not build the message at all, unless the level is enabled.  The level
+ * is checked with Logger.isLoggable() before anything is built.  Patterns are parsed
+ * once and then reused, messages are built in a per thread buffer.
+ * 
  * Casual logging can be done by Log.global.fine (or finer, info, etc). 
  * Serious loggers create there own instance to use i.e. 
  * Log log = new Log(X.class);  // same as new Log(X.class.getPackage().getName());
  * log.fine (or finer, info, etc)
  * 
  * There is also a simple timing facility for the log, i.e. by call startTiming a stop watch starts. Calls to time after that will report
- * the time elapsed since startTiming was called, using the info level.
+ * the time elapsed since startTiming was called in the same thread, or in any thread if not called in this one, using the info level.
+ * 
+ * For latency distributions use spans, i.e. 
+ * try (Log.Span span = log.startSpan("load")) { ... }
+ * Each span records it's duration in the latency histogram of it's name, see getTimer().
+ * Spans nest within a thread, see Span.getParent().  startTimerSummaries() logs
+ * percentiles of all timers periodically.
  * @version $Id: Log.java,v 1.12 2011/01/19 12:38:04 gudmfr Exp $
  */
 public final class Log {
@@ -36,7 +60,28 @@ public final class Log {
     public static final Log echo = new Log("com.decode");
 
     private final java.util.logging.Logger logger; // The java logger used
-    private long startTime;
+    /**
+     * Innermost open span of each thread.
+     */
+    private static final ThreadLocal<Span> currentSpan = new ThreadLocal<Span>();
+    private static ScheduledExecutorService summaryTimer;
+
+    /**
+     * Start time of a thread that has not called startTiming.
+     */
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+    private final ThreadLocal<long[]> startTime = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[] {NOT_STARTED};
+        }
+    };
+    /**
+     * Start time of the last call to startTiming in any thread.
+     */
+    private volatile long sharedStartTime = NOT_STARTED;
+    private final ConcurrentHashMap<String, LatencyHistogram> timers = new ConcurrentHashMap<String, LatencyHistogram>();
+    private ScheduledFuture<?> summaries;
 
     /**
      * Construct Log for the specified subsystem
@@ -96,6 +141,40 @@ public final class Log {
     public void info(String pattern, Object... args) {
         log(Level.INFO, pattern, args);
     }
+    /**
+     * Log using INFO level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The argument to populate the pattern with
+     */
+    public void info(String pattern, Object a1) {
+        logFixed(Level.INFO, pattern, 1, a1, null, null);
+    }
+    /**
+     * Log using INFO level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     */
+    public void info(String pattern, Object a1, Object a2) {
+        logFixed(Level.INFO, pattern, 2, a1, a2, null);
+    }
+    /**
+     * Log using INFO level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     * @param a3 The third argument to populate the pattern with
+     */
+    public void info(String pattern, Object a1, Object a2, Object a3) {
+        logFixed(Level.INFO, pattern, 3, a1, a2, a3);
+    }
+    /**
+     * Log using INFO level, the message is only built if the level is enabled
+     * @param message Supplies the message
+     */
+    public void info(Supplier<String> message) {
+        log(Level.INFO, message);
+    }
     /**
      * Log using WARNING level
      * @param pattern The pattern to use, see String.format
@@ -104,6 +183,40 @@ public final class Log {
     public void warning(String pattern, Object... args) {
         log(Level.WARNING, pattern, args);
     }
+    /**
+     * Log using WARNING level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The argument to populate the pattern with
+     */
+    public void warning(String pattern, Object a1) {
+        logFixed(Level.WARNING, pattern, 1, a1, null, null);
+    }
+    /**
+     * Log using WARNING level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     */
+    public void warning(String pattern, Object a1, Object a2) {
+        logFixed(Level.WARNING, pattern, 2, a1, a2, null);
+    }
+    /**
+     * Log using WARNING level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     * @param a3 The third argument to populate the pattern with
+     */
+    public void warning(String pattern, Object a1, Object a2, Object a3) {
+        logFixed(Level.WARNING, pattern, 3, a1, a2, a3);
+    }
+    /**
+     * Log using WARNING level, the message is only built if the level is enabled
+     * @param message Supplies the message
+     */
+    public void warning(Supplier<String> message) {
+        log(Level.WARNING, message);
+    }
     /**
      * Log using SEVERE level
      * @param pattern The pattern to use, see String.format
@@ -112,6 +225,40 @@ public final class Log {
     public void severe(String pattern, Object... args) {
         log(Level.SEVERE, pattern, args);
     }
+    /**
+     * Log using SEVERE level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The argument to populate the pattern with
+     */
+    public void severe(String pattern, Object a1) {
+        logFixed(Level.SEVERE, pattern, 1, a1, null, null);
+    }
+    /**
+     * Log using SEVERE level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     */
+    public void severe(String pattern, Object a1, Object a2) {
+        logFixed(Level.SEVERE, pattern, 2, a1, a2, null);
+    }
+    /**
+     * Log using SEVERE level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     * @param a3 The third argument to populate the pattern with
+     */
+    public void severe(String pattern, Object a1, Object a2, Object a3) {
+        logFixed(Level.SEVERE, pattern, 3, a1, a2, a3);
+    }
+    /**
+     * Log using SEVERE level, the message is only built if the level is enabled
+     * @param message Supplies the message
+     */
+    public void severe(Supplier<String> message) {
+        log(Level.SEVERE, message);
+    }
     /**
      * Log using FINE level
      * @param pattern The pattern to use, see String.format
@@ -120,6 +267,40 @@ public final class Log {
     public void fine(String pattern, Object... args) {
         log(Level.FINE, pattern, args);
     }
+    /**
+     * Log using FINE level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The argument to populate the pattern with
+     */
+    public void fine(String pattern, Object a1) {
+        logFixed(Level.FINE, pattern, 1, a1, null, null);
+    }
+    /**
+     * Log using FINE level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     */
+    public void fine(String pattern, Object a1, Object a2) {
+        logFixed(Level.FINE, pattern, 2, a1, a2, null);
+    }
+    /**
+     * Log using FINE level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     * @param a3 The third argument to populate the pattern with
+     */
+    public void fine(String pattern, Object a1, Object a2, Object a3) {
+        logFixed(Level.FINE, pattern, 3, a1, a2, a3);
+    }
+    /**
+     * Log using FINE level, the message is only built if the level is enabled
+     * @param message Supplies the message
+     */
+    public void fine(Supplier<String> message) {
+        log(Level.FINE, message);
+    }
     /**
      * Log using FINER level
      * @param pattern The pattern to use, see String.format
@@ -128,6 +309,40 @@ public final class Log {
     public void finer(String pattern, Object... args) {
         log(Level.FINER, pattern, args);
     }
+    /**
+     * Log using FINER level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The argument to populate the pattern with
+     */
+    public void finer(String pattern, Object a1) {
+        logFixed(Level.FINER, pattern, 1, a1, null, null);
+    }
+    /**
+     * Log using FINER level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     */
+    public void finer(String pattern, Object a1, Object a2) {
+        logFixed(Level.FINER, pattern, 2, a1, a2, null);
+    }
+    /**
+     * Log using FINER level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     * @param a3 The third argument to populate the pattern with
+     */
+    public void finer(String pattern, Object a1, Object a2, Object a3) {
+        logFixed(Level.FINER, pattern, 3, a1, a2, a3);
+    }
+    /**
+     * Log using FINER level, the message is only built if the level is enabled
+     * @param message Supplies the message
+     */
+    public void finer(Supplier<String> message) {
+        log(Level.FINER, message);
+    }
     /**
      * Log using FINEST level
      * @param pattern The pattern to use, see String.format
@@ -136,6 +351,40 @@ public final class Log {
     public void finest(String pattern, Object... args) {
         log(Level.FINEST, pattern, args);
     }
+    /**
+     * Log using FINEST level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The argument to populate the pattern with
+     */
+    public void finest(String pattern, Object a1) {
+        logFixed(Level.FINEST, pattern, 1, a1, null, null);
+    }
+    /**
+     * Log using FINEST level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     */
+    public void finest(String pattern, Object a1, Object a2) {
+        logFixed(Level.FINEST, pattern, 2, a1, a2, null);
+    }
+    /**
+     * Log using FINEST level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     * @param a3 The third argument to populate the pattern with
+     */
+    public void finest(String pattern, Object a1, Object a2, Object a3) {
+        logFixed(Level.FINEST, pattern, 3, a1, a2, a3);
+    }
+    /**
+     * Log using FINEST level, the message is only built if the level is enabled
+     * @param message Supplies the message
+     */
+    public void finest(Supplier<String> message) {
+        log(Level.FINEST, message);
+    }
     /**
      * Log using CONFIG level
      * @param pattern The pattern to use, see String.format
@@ -144,6 +393,40 @@ public final class Log {
     public void config(String pattern, Object... args) {
         log(Level.CONFIG, pattern, args);
     }
+    /**
+     * Log using CONFIG level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The argument to populate the pattern with
+     */
+    public void config(String pattern, Object a1) {
+        logFixed(Level.CONFIG, pattern, 1, a1, null, null);
+    }
+    /**
+     * Log using CONFIG level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     */
+    public void config(String pattern, Object a1, Object a2) {
+        logFixed(Level.CONFIG, pattern, 2, a1, a2, null);
+    }
+    /**
+     * Log using CONFIG level
+     * @param pattern The pattern to use, see String.format
+     * @param a1 The first argument to populate the pattern with
+     * @param a2 The second argument to populate the pattern with
+     * @param a3 The third argument to populate the pattern with
+     */
+    public void config(String pattern, Object a1, Object a2, Object a3) {
+        logFixed(Level.CONFIG, pattern, 3, a1, a2, a3);
+    }
+    /**
+     * Log using CONFIG level, the message is only built if the level is enabled
+     * @param message Supplies the message
+     */
+    public void config(Supplier<String> message) {
+        log(Level.CONFIG, message);
+    }
     
     /**
      * Set the level on which all messages of that level and higher are logged.
@@ -161,20 +444,323 @@ public final class Log {
         return logger.getLevel() != null ? logger.getLevel() : Level.INFO;
     }
     
+    /**
+     * Check if messages of the specified level are logged.
+     * @param level The level to check
+     * @return True if messages of the level are logged
+     */
+    public boolean isLoggable(Level level) {
+        return logger.isLoggable(level);
+    }
+
     /**
      * Start a stopwatch timing measurements, calls to time will use this to calculate time elapsed
      */
     public void startTiming() {
-        startTime = System.currentTimeMillis();
+        long now = System.nanoTime();
+        startTime.get()[0] = now;
+        sharedStartTime = now;
     }
     
     /**
-     * Log using INFO level prefixing the message with the time elapsed since timing started
+     * Log using INFO level prefixing the message with the time elapsed since timing started.
+     * If this thread has not started timing the last start in any thread is used, the
+     * message is logged without the time if timing has not been started at all.
      * @param pattern The pattern to use, see String.format
      * @param args The variable arguments to populate the pattern with, see String.format
      */
     public void time(String pattern, Object... args) {
-        info(formatTime(startTime) + pattern, args);
+        long start = startTime.get()[0];
+        if (start == NOT_STARTED) {
+            start = sharedStartTime;
+        }
+        if (start == NOT_STARTED) {
+            info(pattern, args);
+        } else {
+            info(formatNanoTime(start) + pattern, args);
+        }
+    }
+
+    /**
+     * Start a span, measuring time until it is closed.  The span is the innermost
+     * span of this thread until closed.
+     * @param name The name of the timer the duration is recorded in
+     * @return the span
+     */
+    public Span startSpan(String name) {
+        return new Span(name, getTimer(name));
+    }
+
+    /**
+     * Get the innermost open span of this thread.
+     * @return the span, null if there is none
+     */
+    public static Span currentSpan() {
+        return currentSpan.get();
+    }
+
+    /**
+     * Get the latency histogram of the named timer, creating it on first use.
+     * @param name The name of the timer
+     * @return the histogram
+     */
+    public LatencyHistogram getTimer(String name) {
+        LatencyHistogram timer = timers.get(name);
+        if (timer == null) {
+            timer = new LatencyHistogram();
+            LatencyHistogram existing = timers.putIfAbsent(name, timer);
+            if (existing != null) {
+                timer = existing;
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * Log count, p50, p99, p999 and max of every timer with recorded durations.
+     * @param level The level to log
+     * @param reset True to reset the timers, so the next summary only covers later durations
+     */
+    public void logTimerSummaries(Level level, boolean reset) {
+        if (!isLoggable(level)) {
+            return;
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : timers.entrySet()) {
+            LatencyHistogram timer = entry.getValue().snapshot(reset);
+            if (timer.getCount() > 0) {
+                log(level, "timer %s: %s", entry.getKey(), timer);
+            }
+        }
+    }
+
+    /**
+     * Log summaries of all timers periodically, each covering the durations recorded
+     * since the previous one.  Replaces any previous schedule.
+     * @param period Time between summaries
+     * @param unit Unit of period
+     * @param level The level to log
+     */
+    public synchronized void startTimerSummaries(long period, TimeUnit unit, final Level level) {
+        stopTimerSummaries();
+        summaries = summaryTimer().scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                logTimerSummaries(level, true);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stop logging periodic timer summaries.
+     */
+    public synchronized void stopTimerSummaries() {
+        if (summaries != null) {
+            summaries.cancel(false);
+            summaries = null;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService summaryTimer() {
+        if (summaryTimer == null) {
+            summaryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Log-timer-summaries");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return summaryTimer;
+    }
+
+    /**
+     * @param startNanos The System.nanoTime() to format time relative to
+     * @return A formatted time string of time elapsed from start, see formatDuration
+     */
+    public static String formatNanoTime(long startNanos) {
+        return formatDuration(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Format a duration like formatTime, i.e. "(1h 2m 3s 4ms) " when a second or longer.
+     * Shorter durations show the two most significant of milli, micro and nano seconds,
+     * i.e. "(4ms 120\u00b5s) ", "(120\u00b5s 5ns) " or "(5ns) ".
+     * @param nanos The duration in nanoseconds
+     * @return A formatted time string
+     */
+    public static String formatDuration(long nanos) {
+        if (nanos >= 1000000000L) {
+            return formatMillis(nanos / 1000000L);
+        }
+        long ms = nanos / 1000000L;
+        long us = nanos / 1000L % 1000L;
+        long ns = nanos % 1000L;
+        StringBuilder sb = new StringBuilder(16).append('(');
+        if (ms > 0) {
+            sb.append(ms).append("ms ").append(us).append("\u00b5s");
+        } else if (us > 0) {
+            sb.append(us).append("\u00b5s ").append(ns).append("ns");
+        } else {
+            sb.append(ns).append("ns");
+        }
+        return sb.append(") ").toString();
+    }
+
+    /**
+     * Record inferring it's source as the caller of Log, the way LogRecord infers
+     * the caller of Logger.  As with LogRecord, the source is only found if asked
+     * for on the logging thread, handlers formatting on another thread must ask
+     * before handing the record over.
+     */
+    private static final class CallerRecord extends LogRecord {
+        private static final long serialVersionUID = 5471327316209837285L;
+        private static final StackWalker walker = StackWalker.getInstance();
+        private static final Function<Stream<StackFrame>, StackFrame> findCaller =
+            new Function<Stream<StackFrame>, StackFrame>() {
+                public StackFrame apply(Stream<StackFrame> frames) {
+                    Iterator<StackFrame> it = frames.iterator();
+                    String logClass = Log.class.getName();
+                    // First, search back to a method in the Log class.
+                    StackFrame frame = null;
+                    while (it.hasNext()) {
+                        frame = it.next();
+                        if (frame.getClassName().equals(logClass)) {
+                            break;
+                        }
+                        frame = null;
+                    }
+                    // Now search for the first frame before Log and the classes wrapping it.
+                    while (frame != null) {
+                        if (!OneLineFormatter.isIgnoredCaller(frame.getClassName())) {
+                            return frame;
+                        }
+                        frame = it.hasNext() ? it.next() : null;
+                    }
+                    return null;
+                }
+            };
+
+        private transient boolean needToInferCaller = true;
+
+        CallerRecord(Level level, String message) {
+            super(level, message);
+        }
+
+        @Override
+        public String getSourceClassName() {
+            inferCaller();
+            return super.getSourceClassName();
+        }
+
+        @Override
+        public void setSourceClassName(String sourceClassName) {
+            needToInferCaller = false;
+            super.setSourceClassName(sourceClassName);
+        }
+
+        @Override
+        public String getSourceMethodName() {
+            inferCaller();
+            return super.getSourceMethodName();
+        }
+
+        @Override
+        public void setSourceMethodName(String sourceMethodName) {
+            needToInferCaller = false;
+            super.setSourceMethodName(sourceMethodName);
+        }
+
+        private void inferCaller() {
+            if (needToInferCaller) {
+                needToInferCaller = false;
+                StackFrame frame = walker.walk(findCaller);
+                super.setSourceClassName(frame != null ? frame.getClassName() : null);
+                super.setSourceMethodName(frame != null ? frame.getMethodName() : null);
+            }
+        }
+    }
+
+    /**
+     * A measurement of elapsed time, recorded in a timer when closed.  Spans of a
+     * thread nest, each span started while another is open in the same thread
+     * has that span as parent.  Use with try-with-resources.
+     */
+    public static final class Span implements AutoCloseable {
+        private final String name;
+        private final LatencyHistogram timer;
+        private final Span parent;
+        private final long start;
+        private long elapsed = -1;
+
+        Span(String name, LatencyHistogram timer) {
+            this.name = name;
+            this.timer = timer;
+            this.parent = currentSpan.get();
+            currentSpan.set(this);
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * @return the name of the timer
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the span that was open in this thread when this one was started, or null
+         */
+        public Span getParent() {
+            return parent;
+        }
+
+        /**
+         * @return the number of enclosing spans
+         */
+        public int getDepth() {
+            int depth = 0;
+            for (Span s = parent; s != null; s = s.parent) {
+                depth++;
+            }
+            return depth;
+        }
+
+        /**
+         * @return the nanoseconds elapsed since start, or the duration once stopped
+         */
+        public long getElapsedNanos() {
+            return elapsed >= 0 ? elapsed : System.nanoTime() - start;
+        }
+
+        /**
+         * Stop the span and record it's duration, only the first call has any effect.
+         * If the span is open in this thread its parent becomes the innermost span,
+         * also when spans started inside it are still open.
+         * @return the duration in nanoseconds
+         */
+        public long stop() {
+            if (elapsed < 0) {
+                elapsed = System.nanoTime() - start;
+                timer.record(elapsed);
+                for (Span s = currentSpan.get(); s != null; s = s.parent) {
+                    if (s == this) {
+                        if (parent == null) {
+                            currentSpan.remove();
+                        } else {
+                            currentSpan.set(parent);
+                        }
+                        break;
+                    }
+                }
+            }
+            return elapsed;
+        }
+
+        /**
+         * Same as stop()
+         */
+        public void close() {
+            stop();
+        }
     }
 
     /**
@@ -182,7 +768,10 @@ public final class Log {
      * @return A formatted time string of time elapsed from start
      */
     public static String formatTime(long start) {
-        long diff = System.currentTimeMillis()-start;
+        return formatMillis(System.currentTimeMillis()-start);
+    }
+
+    private static String formatMillis(long diff) {
         int hours = (int)(diff/(1000*60*60));
         int hdiff = hours*1000*60*60;
         int min = (int)((diff-hdiff)/(1000*60));
@@ -210,9 +799,29 @@ public final class Log {
      * @param args The variable arguments to populate the pattern with, see String.format
     */
     public void log(Level level, String pattern, Object... args) {        
-    	if (logger.isLoggable(level)) {        	
-    		assert pattern != null || args.length == 0;
-            logger.log(level, args.length > 0 ? String.format(pattern, args) : (pattern == null ? "" : pattern));
+    	if (isLoggable(level)) {        	
+    		assert pattern != null || args == null || args.length == 0;
+            publish(level, format(pattern, args), null);
+        }
+    }
+
+    /**
+     * General log call, the message is only built if the level is enabled
+     * @param level The level to log
+     * @param message Supplies the message
+    */
+    public void log(Level level, Supplier<String> message) {
+        if (isLoggable(level)) {
+            publish(level, message == null ? "" : message.get(), null);
+        }
+    }
+
+    /**
+     * Log with count fixed arguments, without allocating an argument array.
+     */
+    private void logFixed(Level level, String pattern, int count, Object a1, Object a2, Object a3) {
+        if (isLoggable(level)) {
+            publish(level, LogPattern.compile(pattern).format(count, a1, a2, a3, null), null);
         }
     }
     
@@ -225,9 +834,23 @@ public final class Log {
      * @param args The variable arguments to populate the pattern with, see String.format
     */
     public void log(Throwable th, Level level, String pattern, Object... args) {
-        if (logger.isLoggable(level)) {
-            assert pattern != null || args.length == 0;
-            logger.log(level, args.length > 0 ? String.format(pattern, args) : (pattern == null ? "" : pattern), th);
+        if (isLoggable(level)) {
+            assert pattern != null || args == null || args.length == 0;
+            publish(level, format(pattern, args), th);
+        }
+    }
+
+    private void publish(Level level, String message, Throwable th) {
+        LogRecord record = new CallerRecord(level, message);
+        record.setLoggerName(logger.getName());
+        record.setThrown(th);
+        logger.log(record);
+    }
+
+    private static String format(String pattern, Object[] args) {
+        if (args == null || args.length == 0) {
+            return pattern == null ? "" : pattern;
         }
+        return LogPattern.compile(pattern).format(0, null, null, null, args);
     }
 }
\ No newline at end of file
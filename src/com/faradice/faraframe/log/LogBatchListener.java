@@ -0,0 +1,21 @@
+package com.faradice.faraframe.log;
+
+import java.util.List;
+import java.util.logging.LogRecord;
+
+/**
+ * Listener notified of records added to and evicted from a BufferedRecordHandler
+ * in batches.  With asynchronous dispatch a batch holds all changes the dispatcher
+ * thread found queued, see BufferedRecordHandler.setAsyncDispatch().
+ */
+public interface LogBatchListener {
+
+    /**
+     * Records have been added to or evicted from the buffer.
+     * @param source the handler
+     * @param added records added, oldest first
+     * @param evicted records evicted because the buffer was full, oldest first
+     */
+    public void loggChanged(BufferedRecordHandler source, List<LogRecord> added, List<LogRecord> evicted);
+
+}
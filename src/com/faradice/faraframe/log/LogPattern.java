@@ -0,0 +1,212 @@
+package com.faradice.faraframe.log;
+
+import java.util.ArrayList;
+import java.util.Formattable;
+import java.util.Formatter;
+import java.util.List;
+import java.util.MissingFormatArgumentException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A String.format pattern split into literal text and format specifiers once,
+ * so that formatting does not parse the pattern again.
+ *
+ * Plain %s and %d specifiers are appended directly.  Specifiers with flags, width
+ * or precision, other conversions and Formattable arguments are passed to a
+ * Formatter one specifier at a time.  Patterns using explicit argument indexes,
+ * and patterns with a '%' that does not start a valid specifier, are formatted
+ * with String.format as a whole, so that it reports them as before.
+ */
+final class LogPattern {
+
+    /**
+     * Same syntax as java.util.Formatter.
+     */
+    private static final Pattern SPECIFIER =
+        Pattern.compile("%(\\d+\\$)?([-#+ 0,(\\<]*)?(\\d+)?(\\.\\d+)?([tT])?([a-zA-Z%])");
+
+    private static final int MAX_CACHED = 2048;
+    private static final ConcurrentHashMap<String, LogPattern> cache = new ConcurrentHashMap<String, LogPattern>();
+
+    private static final int STRING = 0;
+    private static final int DECIMAL = 1;
+    private static final int FORMATTER = 2;
+
+    private static final ThreadLocal<MessageBuffer> buffers = new ThreadLocal<MessageBuffer>() {
+        @Override
+        protected MessageBuffer initialValue() {
+            return new MessageBuffer();
+        }
+    };
+
+    private final String pattern;
+    /**
+     * Literal text before each specifier, and after the last one.
+     */
+    private final String[] literals;
+    private final int[] kinds;
+    /**
+     * Specifier text for FORMATTER kinds.
+     */
+    private final String[] specifiers;
+    /**
+     * True if the pattern must be passed to String.format as a whole.
+     */
+    private final boolean whole;
+
+    private LogPattern(String pattern) {
+        this.pattern = pattern;
+        List<String> literalList = new ArrayList<String>();
+        List<String> specifierList = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        boolean formatWhole = false;
+        Matcher matcher = SPECIFIER.matcher(pattern);
+        int pos = 0;
+        while (matcher.find()) {
+            if (pattern.lastIndexOf('%', matcher.start() - 1) >= pos) {
+                // A '%' that is not a specifier, String.format throws for it.
+                formatWhole = true;
+            }
+            literal.append(pattern, pos, matcher.start());
+            pos = matcher.end();
+            char conversion = matcher.group(6).charAt(0);
+            if (conversion == '%') {
+                if (matcher.group(2).length() > 0 || matcher.group(3) != null) {
+                    // Padded percent sign, rare enough to leave to String.format.
+                    formatWhole = true;
+                }
+                literal.append('%');
+            } else if (conversion == 'n') {
+                literal.append(System.lineSeparator());
+            } else {
+                if (matcher.group(1) != null || matcher.group(2).indexOf('<') >= 0) {
+                    formatWhole = true;
+                }
+                literalList.add(literal.toString());
+                literal.setLength(0);
+                specifierList.add(matcher.group());
+            }
+        }
+        if (pattern.indexOf('%', pos) >= 0) {
+            formatWhole = true;
+        }
+        literal.append(pattern, pos, pattern.length());
+        literalList.add(literal.toString());
+
+        whole = formatWhole;
+        literals = literalList.toArray(new String[literalList.size()]);
+        specifiers = specifierList.toArray(new String[specifierList.size()]);
+        kinds = new int[specifiers.length];
+        for (int i = 0; i < specifiers.length; i++) {
+            if (specifiers[i].equals("%s")) {
+                kinds[i] = STRING;
+            } else if (specifiers[i].equals("%d")) {
+                kinds[i] = DECIMAL;
+            } else {
+                kinds[i] = FORMATTER;
+            }
+        }
+    }
+
+    /**
+     * Get the compiled form of pattern, compiling it on first use.
+     * @param pattern the pattern, see String.format
+     * @return the compiled pattern
+     */
+    static LogPattern compile(String pattern) {
+        LogPattern compiled = cache.get(pattern);
+        if (compiled == null) {
+            compiled = new LogPattern(pattern);
+            if (cache.size() >= MAX_CACHED) {
+                // Patterns built at runtime should not grow the cache without bound.
+                cache.clear();
+            }
+            cache.put(pattern, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Format arguments, given either as count fixed arguments or as an array.
+     * @return the formatted message
+     */
+    String format(int count, Object a1, Object a2, Object a3, Object[] args) {
+        if (whole) {
+            return String.format(pattern, args != null ? args : fixedArgs(count, a1, a2, a3));
+        }
+        if (args != null) {
+            count = args.length;
+        }
+        MessageBuffer buffer = buffers.get();
+        if (buffer.inUse) {
+            // An argument's toString() is logging, do not clobber the outer message.
+            buffer = new MessageBuffer();
+        }
+        buffer.inUse = true;
+        try {
+            StringBuilder sb = buffer.builder;
+            sb.setLength(0);
+            for (int i = 0; i < kinds.length; i++) {
+                sb.append(literals[i]);
+                if (i >= count) {
+                    throw new MissingFormatArgumentException(specifiers[i]);
+                }
+                Object arg = args != null ? args[i] : (i == 0 ? a1 : i == 1 ? a2 : a3);
+                int kind = kinds[i];
+                if (kind == STRING && !(arg instanceof Formattable)) {
+                    sb.append(arg);
+                } else if (kind == DECIMAL && (arg instanceof Integer || arg instanceof Long
+                        || arg instanceof Short || arg instanceof Byte)) {
+                    sb.append(((Number) arg).longValue());
+                } else {
+                    buffer.formatter().format(specifiers[i], arg);
+                }
+            }
+            sb.append(literals[kinds.length]);
+            String message = sb.toString();
+            buffer.trim();
+            return message;
+        } finally {
+            buffer.inUse = false;
+        }
+    }
+
+    private static Object[] fixedArgs(int count, Object a1, Object a2, Object a3) {
+        switch (count) {
+            case 0: return new Object[0];
+            case 1: return new Object[] {a1};
+            case 2: return new Object[] {a1, a2};
+            default: return new Object[] {a1, a2, a3};
+        }
+    }
+
+    /**
+     * Builder reused by all messages formatted on one thread.
+     */
+    private static final class MessageBuffer {
+        private static final int MAX_RETAINED = 8192;
+
+        StringBuilder builder = new StringBuilder(256);
+        private Formatter formatter;
+        boolean inUse;
+
+        Formatter formatter() {
+            if (formatter == null) {
+                formatter = new Formatter(builder);
+            }
+            return formatter;
+        }
+
+        /**
+         * Drop the builder if an unusually long message made it large.
+         */
+        void trim() {
+            if (builder.capacity() > MAX_RETAINED) {
+                builder = new StringBuilder(256);
+                formatter = null;
+            }
+        }
+    }
+}
@@ -12,15 +12,26 @@
 
 package com.faradice.faraframe.log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Everything written to the logging output stream is written to its logger.
  *
+ * Each line is logged as one record.  A line ends at \n, \r or \r\n, and may be
+ * written in any number of calls.  Lines are decoded with a decoder reused for
+ * the life of the stream, and may be cut at a maximum length.
+ *
  * @author gisli
  * @version $Revision: 1.1 $ $Date: 2008/09/08 11:24:50 $
  */
@@ -30,7 +41,26 @@ import java.util.logging.Logger;
  */
 public class LoggingOutputStream extends OutputStream {
 
-    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long CR_BYTES = ONES * CR;
+    private static final long LF_BYTES = ONES * LF;
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Bytes of the line being written, when it spans more than one write.
+     */
+    private byte[] buffer = new byte[256];
+    private int length = 0;
+    /**
+     * True if bytes were cut from the line in buffer.
+     */
+    private boolean truncated = false;
+    private int maxLineLength = 0;
+    private CharsetDecoder decoder;
+    private CharBuffer chars = CharBuffer.allocate(256);
     private boolean skip = false;
     private Level level = Level.WARNING;
     private Logger logger = null;
@@ -45,6 +75,7 @@ public class LoggingOutputStream extends OutputStream {
     public LoggingOutputStream(Logger logger, Level level) {
         this.logger = logger;
         this.level = level;
+        setCharset(Charset.defaultCharset());
     }
 
     /**
@@ -58,6 +89,7 @@ public class LoggingOutputStream extends OutputStream {
         this.logger = logger;
         this.level = level;
         this.prefix = prefix;
+        setCharset(Charset.defaultCharset());
     }
 
 
@@ -75,18 +107,143 @@ public class LoggingOutputStream extends OutputStream {
               processBuffer();
             }
         } else {
-          buffer.write(cc);
+          append(c);
         }
         skip = (c == '\r');
     }
 
+    /**
+     * Write the data to the buffer, logging each line completed.  Lines
+     * that are complete within b are decoded directly from b.
+     *
+     * @param b data to log.
+     * @param off start of the data in b.
+     * @param len number of bytes to log.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int end = off + len;
+        int start = off;
+        while (start < end) {
+            int eol = indexOfLineEnd(b, start, end);
+            if (eol < 0) {
+                append(b, start, end - start);
+                skip = false;
+                return;
+            }
+            if (eol > start) {
+                skip = false;
+            }
+            if (!skip) {
+                if (length == 0 && !truncated) {
+                    processLine(decode(b, start, Math.min(eol - start, maxLength())), eol - start > maxLength());
+                } else {
+                    append(b, start, eol - start);
+                    processBuffer();
+                }
+            }
+            skip = (b[eol] == CR);
+            start = eol + 1;
+        }
+    }
+
+    /**
+     * Find the first \n or \r in b[from..to).  Compares eight bytes at a
+     * time, with the usual test for a zero byte in a word applied to the word
+     * xor'ed with each terminator.
+     *
+     * @return the index, or -1 if there is none.
+     */
+    private static int indexOfLineEnd(byte[] b, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long word = (long) LONGS.get(b, i);
+            long cr = word ^ CR_BYTES;
+            long lf = word ^ LF_BYTES;
+            if ((((cr - ONES) & ~cr | (lf - ONES) & ~lf) & HIGH_BITS) != 0) {
+                break;
+            }
+        }
+        for (; i < to; i++) {
+            if (b[i] == LF || b[i] == CR) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add bytes to the line being written, dropping bytes beyond the maximum line length.
+     */
+    private void append(byte[] b, int off, int len) {
+        int room = maxLength() - length;
+        if (len > room) {
+            truncated = true;
+            len = Math.max(0, room);
+        }
+        if (length + len > buffer.length) {
+            byte[] grown = new byte[Math.max(length + len, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+        System.arraycopy(b, off, buffer, length, len);
+        length += len;
+    }
+
+    private void append(byte c) {
+        if (length >= maxLength()) {
+            truncated = true;
+            return;
+        }
+        if (length == buffer.length) {
+            byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+        buffer[length++] = c;
+    }
+
+    private int maxLength() {
+        return maxLineLength > 0 ? maxLineLength : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Decode bytes with the stream's charset, malformed input is replaced.
+     */
+    private String decode(byte[] b, int off, int len) {
+        int capacity = (int) Math.ceil(len * (double) decoder.maxCharsPerByte());
+        if (chars.capacity() < capacity) {
+            chars = CharBuffer.allocate(capacity);
+        }
+        chars.clear();
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(b, off, len), chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars.toString();
+    }
+
+    private void processLine(String line, boolean cut) {
+        processLine(cut ? line + "..." : line);
+    }
 
     /**
      * Converts the buffer to a string and sends it to <code>processLine</code>
      */
     protected void processBuffer() {
-        processLine(buffer.toString());
-        buffer.reset();
+        String line = decode(buffer, 0, length);
+        boolean cut = truncated;
+        length = 0;
+        truncated = false;
+        if (buffer.length > 8192) {
+            // Do not hold on to the memory of an unusually long line.
+            buffer = new byte[256];
+            chars = CharBuffer.allocate(256);
+        }
+        processLine(line, cut);
     }
 
     /**
@@ -121,7 +278,7 @@ public class LoggingOutputStream extends OutputStream {
 
     @Override
     public void flush() {
-        if (buffer.size() > 0) {
+        if (length > 0 || truncated) {
           processBuffer();
         }
     }
@@ -134,6 +291,33 @@ public class LoggingOutputStream extends OutputStream {
         return level;
     }
 
+    /**
+     * Set the charset used to decode the data written.  The platform default
+     * charset is used if not set.
+     * @param charset The charset to use
+     */
+    public void setCharset(Charset charset) {
+        this.decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Set the maximum length of a logged line in bytes, longer lines are cut and end with "...".
+     * @param maxLineLength The maximum length, 0 for no limit
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Query for the maximum length of a logged line
+     * @return The maximum length in bytes, 0 if there is no limit
+     */
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
     /**
      * Query for the current prefix
      * @return The current prefix
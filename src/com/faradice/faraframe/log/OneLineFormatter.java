@@ -2,12 +2,25 @@ package com.faradice.faraframe.log;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.StackWalker.StackFrame;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
+import java.util.stream.Stream;
 
 /**
- * Formatter for oneline log entries 
+ * Formatter for oneline log entries
+ *
+ * The caller is found by walking the stack lazily, only as far as the first
+ * frame outside the logging classes, and the caller string is cached per call site.
+ * Lines are rendered into a buffer reused by the formatting thread, the
+ * timestamp is only rendered again when the second changes.
  */
 public class OneLineFormatter extends Formatter {
     static private final HashSet<String> ignoredCalls = new HashSet<String>();
@@ -17,56 +30,175 @@ public class OneLineFormatter extends Formatter {
         ignoredCalls.add("java.util.logging.Logger");
         ignoredCalls.add("com.decode.db.services.DbTransactProxy");
     }
+
+    private static final String ASSUMED_LOG_CLASS = "java.util.logging.Logger";
+
+    private static final StackWalker walker = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+    /**
+     * Caller strings by class and method name.
+     */
+    private static final ClassValue<ConcurrentHashMap<String, String>> callers =
+        new ClassValue<ConcurrentHashMap<String, String>>() {
+            @Override
+            protected ConcurrentHashMap<String, String> computeValue(Class<?> type) {
+                return new ConcurrentHashMap<String, String>();
+            }
+        };
+
+    private static final Function<Stream<StackFrame>, StackFrame> findCaller =
+        new Function<Stream<StackFrame>, StackFrame>() {
+            public StackFrame apply(Stream<StackFrame> frames) {
+                Iterator<StackFrame> it = frames.iterator();
+                // First, search back to a method in the Logger class.
+                StackFrame frame = null;
+                while (it.hasNext()) {
+                    frame = it.next();
+                    if (frame.getClassName().equals(ASSUMED_LOG_CLASS)) {
+                        break;
+                    }
+                    frame = null;
+                }
+                // Now search for the first frame before the "Logger" class.
+                while (frame != null) {
+                    String cname = frame.getClassName();
+                    // Do not report ignored classes and dynamic proxies as the start calling frame
+                    if (!isIgnoredCaller(cname)) {
+                        // We've found the relevant frame.
+                        return frame;
+                    }
+                    frame = it.hasNext() ? it.next() : null;
+                }
+                return null;
+            }
+        };
+
+    private static final ThreadLocal<LineBuffer> buffers = new ThreadLocal<LineBuffer>() {
+        @Override
+        protected LineBuffer initialValue() {
+            return new LineBuffer();
+        }
+    };
+
+    /**
+     * @param cname Name of a class on the stack of a logging call
+     * @return true if the class wraps the logger and is not reported as the caller
+     */
+    static boolean isIgnoredCaller(String cname) {
+        return ignoredCalls.contains(cname) || cname.startsWith("$Proxy");
+    }
+
     @Override public String format(LogRecord rec) {
-        String s = String.format("%1$s [%2$tY-%2$tm-%2$td %2$tH:%2$tM:%2$tS %3$s %4$s]\n",
-            rec.getMessage(), rec.getMillis(), inferCaller(), rec.getLevel());
-        if (rec.getThrown() != null) {
-            StringWriter sw = new StringWriter();
-            try {
-                PrintWriter pw = new PrintWriter(sw);
-                rec.getThrown().printStackTrace(pw);
-                pw.close();
-                return s + sw.toString();
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            } finally {
-                try { sw.close(); } catch (Exception ex) { /* nothing to do */ }
+        LineBuffer buffer = buffers.get();
+        if (buffer.inUse) {
+            // Formatting an argument logged, do not clobber the outer line.
+            buffer = new LineBuffer();
+        }
+        buffer.inUse = true;
+        try {
+            StringBuilder sb = buffer.builder;
+            sb.setLength(0);
+            sb.append(rec.getMessage()).append(" [");
+            buffer.appendTimestamp(rec.getMillis());
+            sb.append(' ').append(inferCaller(rec)).append(' ').append(rec.getLevel()).append("]\n");
+            if (rec.getThrown() != null) {
+                appendThrown(sb, rec.getThrown());
+            }
+            String s = sb.toString();
+            buffer.trim();
+            return s;
+        } finally {
+            buffer.inUse = false;
+        }
+    }
+
+    private void appendThrown(StringBuilder sb, Throwable thrown) {
+        StringWriter sw = new StringWriter();
+        try {
+            PrintWriter pw = new PrintWriter(sw);
+            thrown.printStackTrace(pw);
+            pw.close();
+            sb.append(sw.getBuffer());
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            try { sw.close(); } catch (Exception ex) { /* nothing to do */ }
+        }
+    }
+
+    private String inferCaller(LogRecord rec) {
+        StackFrame frame = walker.walk(findCaller);
+        if (frame == null) {
+            // Formatted on another thread than the one that logged, e.g. by AsyncHandler.
+            if (rec.getSourceClassName() == null || isIgnoredCaller(rec.getSourceClassName())) {
+                return "";
             }
+            return caller(rec.getSourceClassName() + "." + rec.getSourceMethodName());
+        }
+        ConcurrentHashMap<String, String> methods = callers.get(frame.getDeclaringClass());
+        String caller = methods.get(frame.getMethodName());
+        if (caller == null) {
+            caller = caller(frame.getClassName() + "." + frame.getMethodName());
+            methods.put(frame.getMethodName(), caller);
         }
-        return s;
+        return caller;
     }
 
-    private String inferCaller() {
-        // Get the stack trace.
-        StackTraceElement[] stack = (new Throwable()).getStackTrace();
-        String caller = inferCaller(stack, "java.util.logging.Logger");//"com.faradice.faraframe.log.Log");
+    private static String caller(String caller) {
         if (caller.startsWith("com.decode")) {
             return caller.substring(11);
-        } 
+        }
         return caller;
     }
-    private String inferCaller(StackTraceElement[] stack, String assumedLogClass) {
-        // First, search back to a method in the Logger class.
-        int ix = 0;
-        while (ix < stack.length) {
-            StackTraceElement frame = stack[ix];
-            String cname = frame.getClassName();
-            if (cname.equals(assumedLogClass)) {
-            break;
+
+    /**
+     * Builder reused by all lines formatted on one thread.
+     */
+    private static final class LineBuffer {
+        private static final int MAX_RETAINED = 8192;
+
+        StringBuilder builder = new StringBuilder(256);
+        boolean inUse;
+        /**
+         * "yyyy-MM-dd HH:mm:ss" of the second last formatted.
+         */
+        private final char[] timestamp = new char[19];
+        private long second = Long.MIN_VALUE;
+
+        void appendTimestamp(long millis) {
+            long current = Math.floorDiv(millis, 1000L);
+            if (current != second) {
+                LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+                int year = time.getYear();
+                digits(year / 100, 0);
+                digits(year % 100, 2);
+                timestamp[4] = '-';
+                digits(time.getMonthValue(), 5);
+                timestamp[7] = '-';
+                digits(time.getDayOfMonth(), 8);
+                timestamp[10] = ' ';
+                digits(time.getHour(), 11);
+                timestamp[13] = ':';
+                digits(time.getMinute(), 14);
+                timestamp[16] = ':';
+                digits(time.getSecond(), 17);
+                second = current;
             }
-            ix++;
+            builder.append(timestamp);
         }
-        // Now search for the first frame before the "Logger" class.
-        while (ix < stack.length) {
-            StackTraceElement frame = stack[ix];
-            String cname = frame.getClassName();
-            // Do not report ignored classes and dynamic proxies as the start calling frame
-            if (!ignoredCalls.contains(cname) && !cname.startsWith("$Proxy")) {
-               // We've found the relevant frame.
-                return cname + "." + frame.getMethodName();
+
+        private void digits(int value, int pos) {
+            timestamp[pos] = (char) ('0' + value / 10);
+            timestamp[pos + 1] = (char) ('0' + value % 10);
+        }
+
+        /**
+         * Drop the builder if an unusually long line made it large.
+         */
+        void trim() {
+            if (builder.capacity() > MAX_RETAINED) {
+                builder = new StringBuilder(256);
             }
-            ix++;
         }
-        return "";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,95 @@
+package com.faradice.faraframe.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.LogRecord;
+
+/**
+ * Fixed capacity buffer of the most recent log records.
+ *
+ * Any number of threads may add records without locking.  Each record gets the
+ * next sequence number and is stored in slot sequence % capacity, overwriting
+ * the record added capacity records earlier.  Slots hold the sequence number with
+ * the record, so a snapshot can tell a current record from one that is still being
+ * written or has already been overwritten.
+ *
+ */
+final class RecordRingBuffer {
+    private final int capacity;
+    private final AtomicReferenceArray<Slot> slots;
+    /**
+     * Sequence number of the next record added.
+     */
+    private final AtomicLong next = new AtomicLong();
+    /**
+     * Records with lower sequence numbers have been cleared.
+     */
+    private final AtomicLong start = new AtomicLong();
+
+    RecordRingBuffer(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        slots = new AtomicReferenceArray<Slot>(this.capacity);
+    }
+
+    /**
+     * Add record, overwriting the oldest one if the buffer is full.
+     * @param record the record to add
+     * @return the record that was overwritten, or null if the buffer was not full.
+     */
+    LogRecord add(LogRecord record) {
+        long sequence = next.getAndIncrement();
+        int index = (int) (sequence % capacity);
+        Slot slot = new Slot(sequence, record);
+        while (true) {
+            Slot old = slots.get(index);
+            if (old != null && old.sequence > sequence) {
+                // A writer a full lap ahead got here first, this record is already evicted.
+                return record;
+            }
+            if (slots.compareAndSet(index, old, slot)) {
+                return old != null && old.sequence >= start.get() ? old.record : null;
+            }
+        }
+    }
+
+    /**
+     * Get the buffered records, oldest first.  Records that are still being added
+     * when the snapshot is taken are left out.
+     * @return the records
+     */
+    LogRecord[] snapshot() {
+        long end = next.get();
+        long first = Math.max(start.get(), end - capacity);
+        List<LogRecord> records = new ArrayList<LogRecord>((int) (end - first));
+        for (long sequence = first; sequence < end; sequence++) {
+            Slot slot = slots.get((int) (sequence % capacity));
+            if (slot != null && slot.sequence == sequence) {
+                records.add(slot.record);
+            }
+        }
+        return records.toArray(new LogRecord[records.size()]);
+    }
+
+    /**
+     * Remove all records added so far.
+     */
+    void clear() {
+        long end = next.get();
+        long current;
+        do {
+            current = start.get();
+        } while (current < end && !start.compareAndSet(current, end));
+    }
+
+    private static final class Slot {
+        final long sequence;
+        final LogRecord record;
+
+        Slot(long sequence, LogRecord record) {
+            this.sequence = sequence;
+            this.record = record;
+        }
+    }
+}
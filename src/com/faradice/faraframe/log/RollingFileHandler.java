@@ -0,0 +1,607 @@
+package com.faradice.faraframe.log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Log handler writing to a file that is rolled by size and/or time.
+ *
+ * Records are formatted and encoded on the calling thread and copied into a
+ * large direct buffer, which is written to a FileChannel when it is full, when
+ * flush() is called and every flush_interval milliseconds, so many records share
+ * one write.  The active file is directory/name.log, rolled segments are renamed
+ * to directory/name.yyyy-MM-dd_HH-mm-ss.log, gzipped on a background thread and
+ * deleted when there are more than max_files of them.  Callers never wait for
+ * compression.
+ *
+ * Configured from the logging configuration when created without arguments:
+ *
+ * com.faradice.faraframe.log.RollingFileHandler.directory = logs
+ * com.faradice.faraframe.log.RollingFileHandler.name = application
+ * com.faradice.faraframe.log.RollingFileHandler.max_size = 104857600
+ * com.faradice.faraframe.log.RollingFileHandler.roll_period = daily
+ * com.faradice.faraframe.log.RollingFileHandler.max_files = 10
+ * com.faradice.faraframe.log.RollingFileHandler.compress = true
+ * com.faradice.faraframe.log.RollingFileHandler.buffer_size = 1048576
+ * com.faradice.faraframe.log.RollingFileHandler.flush_interval = 1000
+ * com.faradice.faraframe.log.RollingFileHandler.formatter = com.faradice.faraframe.log.SimpleOneLineFormatter
+ * com.faradice.faraframe.log.RollingFileHandler.encoding = UTF-8
+ *
+ * A max_size of 0 disables rolling by size.
+ * See java.util.logging.Handler for further details
+ */
+public class RollingFileHandler extends Handler {
+
+    /**
+     * When the active file is rolled regardless of its size.
+     */
+    public enum RollPeriod {
+        /**
+         * Only roll by size.
+         */
+        NONE,
+        /**
+         * Roll at the start of every hour.
+         */
+        HOURLY,
+        /**
+         * Roll at midnight.
+         */
+        DAILY
+    }
+
+    private static final String ACTIVE_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static ThreadFactory daemonFactory(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Flushes the buffers of all handlers.
+     */
+    private static final ScheduledExecutorService flusher =
+        Executors.newSingleThreadScheduledExecutor(daemonFactory("RollingFileHandler-flush"));
+    /**
+     * Compresses rolled segments and enforces retention, one segment at a time.
+     */
+    private static final ExecutorService compressor =
+        Executors.newSingleThreadExecutor(daemonFactory("RollingFileHandler-compress"));
+
+    private final File directory;
+    private final String name;
+    private final long maxSize;
+    private final RollPeriod period;
+    private final int maxFiles;
+    private final boolean compress;
+    private final File activeFile;
+    /**
+     * Matches rolled segments of this handler only, group 1 is the time stamp and
+     * group 2 the sequence number added when several segments share a second.
+     */
+    private final Pattern segmentPattern;
+    private final ScheduledFuture<?> flushTask;
+
+    /**
+     * Guards the channel, the buffer and the roll state.
+     */
+    private final Object lock = new Object();
+    private final ByteBuffer buffer;
+    private FileChannel channel;
+    /**
+     * Bytes in the active file, including the buffer.
+     */
+    private long size;
+    private long nextRoll;
+    /**
+     * True until the formatter head has been written to a new file.
+     */
+    private boolean headPending;
+    private boolean closed = false;
+
+    /**
+     * Constructor, reads the configuration described in the class comment from
+     * the logging configuration.
+     * See java.util.logging.Handler for further details
+     */
+    public RollingFileHandler() throws IOException {
+        this(new File(stringProperty("directory", "logs")),
+            stringProperty("name", "application"),
+            longProperty("max_size", 100L * 1024 * 1024),
+            rollPeriod(),
+            (int) longProperty("max_files", 10),
+            Boolean.parseBoolean(stringProperty("compress", "true")),
+            (int) longProperty("buffer_size", 1024 * 1024),
+            longProperty("flush_interval", 1000));
+        try {
+            setLevel(Level.parse(stringProperty("level", "ALL")));
+        } catch (Exception ex) {
+            setLevel(Level.ALL);
+        }
+        try {
+            String encoding = stringProperty("encoding", null);
+            if (encoding != null) {
+                setEncoding(encoding);
+            }
+        } catch (Exception ex) {
+            reportError(null, ex, ErrorManager.GENERIC_FAILURE);
+        }
+        String formatter = stringProperty("formatter", null);
+        if (formatter != null) {
+            try {
+                setFormatter((Formatter) ClassLoader.getSystemClassLoader().loadClass(formatter).getConstructor().newInstance());
+            } catch (Exception ex) {
+                reportError(null, ex, ErrorManager.GENERIC_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     * @param directory folder of the log files, created if it does not exist.
+     * @param name base name of the log files.
+     * @param maxSize roll when the active file would grow beyond this many bytes, 0 to only roll by time.
+     * @param period when to roll regardless of size.
+     * @param maxFiles number of rolled segments to keep, 0 to keep all.
+     * @param compress True to gzip rolled segments.
+     * @param bufferSize size of the direct write buffer in bytes.
+     * @param flushMillis maximum time a record waits in the buffer, 0 to only write when the buffer is full or flushed.
+     */
+    public RollingFileHandler(File directory, String name, long maxSize, RollPeriod period, int maxFiles,
+                              boolean compress, int bufferSize, long flushMillis) throws IOException {
+        this.directory = directory;
+        this.name = name;
+        this.maxSize = maxSize;
+        this.period = period;
+        this.maxFiles = maxFiles;
+        this.compress = compress;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(4096, bufferSize));
+        this.activeFile = new File(directory, name + ACTIVE_SUFFIX);
+        this.segmentPattern = Pattern.compile(Pattern.quote(name)
+            + "\\.(\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2})(?:-(\\d+))?\\.log(\\.gz(\\.tmp)?)?");
+        setFormatter(new SimpleOneLineFormatter());
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Can not create log directory " + directory);
+        }
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            if (activeFile.length() > 0 && activeFile.lastModified() < periodStart(now)) {
+                // Left over from an earlier period, roll it before appending.
+                rename(activeFile.lastModified());
+            }
+            open(now);
+        }
+        // Segments rolled but not compressed before the last shutdown.
+        compressor.execute(new Runnable() {
+            public void run() {
+                for (File file : rolledFiles()) {
+                    if (RollingFileHandler.this.compress && file.getName().endsWith(ACTIVE_SUFFIX)) {
+                        compress(file);
+                    }
+                }
+                enforceRetention();
+            }
+        });
+        if (flushMillis > 0) {
+            flushTask = flusher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flushTask = null;
+        }
+    }
+
+    /**
+     * See java.util.logging.Handler for further details
+     */
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = encode(getFormatter().format(record));
+        } catch (Exception ex) {
+            reportError(null, ex, ErrorManager.FORMAT_FAILURE);
+            return;
+        }
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            try {
+                long now = System.currentTimeMillis();
+                if (!channel.isOpen()) {
+                    // A failed roll or write closed it, carry on in the active file.
+                    open(now);
+                }
+                if (now >= nextRoll || (maxSize > 0 && size > 0 && size + bytes.length > maxSize)) {
+                    roll(now);
+                }
+                if (headPending) {
+                    writeHead();
+                }
+                append(bytes);
+            } catch (IOException ex) {
+                reportError(null, ex, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Write the buffered records to the file.
+     * See java.util.logging.Handler for further details
+     */
+    @Override
+    public void flush() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            try {
+                drain();
+            } catch (IOException ex) {
+                reportError(null, ex, ErrorManager.FLUSH_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Write the buffered records and the formatter tail, and close the file.
+     * Rolled segments still waiting to be compressed are compressed in the background.
+     * See java.util.logging.Handler for further details
+     */
+    @Override
+    public void close() throws SecurityException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (flushTask != null) {
+                flushTask.cancel(false);
+            }
+            try {
+                finish();
+            } catch (IOException ex) {
+                reportError(null, ex, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Roll the active file now, regardless of its size and age.
+     */
+    public void roll() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            try {
+                roll(System.currentTimeMillis());
+            } catch (IOException ex) {
+                reportError(null, ex, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Get the file currently written to.
+     * @return the active file
+     */
+    public File getActiveFile() {
+        return activeFile;
+    }
+
+    private byte[] encode(String text) throws IOException {
+        String encoding = getEncoding();
+        return encoding == null ? text.getBytes(Charset.defaultCharset()) : text.getBytes(encoding);
+    }
+
+    /**
+     * Copy bytes to the buffer, writing the buffer when full.  Called holding lock.
+     */
+    private void append(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.remaining()) {
+            drain();
+            if (bytes.length > buffer.capacity()) {
+                ByteBuffer large = ByteBuffer.wrap(bytes);
+                while (large.hasRemaining()) {
+                    channel.write(large);
+                }
+                size += bytes.length;
+                return;
+            }
+        }
+        buffer.put(bytes);
+        size += bytes.length;
+    }
+
+    /**
+     * Write the buffer to the channel.  Called holding lock.
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Open the active file for appending.  Called holding lock.
+     */
+    private void open(long now) throws IOException {
+        channel = FileChannel.open(activeFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+        size = channel.size();
+        headPending = size == 0;
+        nextRoll = nextRoll(now);
+    }
+
+    /**
+     * Write the tail and close the active file.  Called holding lock.
+     */
+    private void finish() throws IOException {
+        try {
+            String tail = getFormatter().getTail(this);
+            if (tail != null && tail.length() > 0) {
+                append(encode(tail));
+            }
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Write the formatter head to a new file.  Called holding lock.
+     */
+    private void writeHead() throws IOException {
+        headPending = false;
+        String head = getFormatter().getHead(this);
+        if (head != null && head.length() > 0) {
+            append(encode(head));
+        }
+    }
+
+    /**
+     * Close, rename and reopen the active file, and hand the rolled segment to
+     * the compressor.  Called holding lock.
+     */
+    private void roll(long now) throws IOException {
+        if (size == 0) {
+            nextRoll = nextRoll(now);
+            return;
+        }
+        File renamed = null;
+        try {
+            finish();
+            renamed = rename(now);
+        } finally {
+            // Keep logging even if the old file could not be finished or renamed.
+            open(now);
+        }
+        final File rolled = renamed;
+        compressor.execute(new Runnable() {
+            public void run() {
+                if (compress && rolled != null) {
+                    compress(rolled);
+                }
+                enforceRetention();
+            }
+        });
+    }
+
+    /**
+     * Rename the active file to a segment name for time.
+     * @return the segment, or null if the file could not be renamed.
+     */
+    private File rename(long time) {
+        String stamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date(time));
+        File rolled = new File(directory, name + "." + stamp + ACTIVE_SUFFIX);
+        for (int i = 1; rolled.exists() || new File(rolled.getPath() + ".gz").exists(); i++) {
+            rolled = new File(directory, name + "." + stamp + "-" + i + ACTIVE_SUFFIX);
+        }
+        try {
+            Files.move(activeFile.toPath(), rolled.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return rolled;
+        } catch (IOException ex) {
+            reportError("Can not roll " + activeFile, ex, ErrorManager.GENERIC_FAILURE);
+            return null;
+        }
+    }
+
+    /**
+     * Gzip file to file.gz and delete file.  Runs on the compressor thread.
+     */
+    private void compress(File file) {
+        if (!file.exists()) {
+            // Already deleted by retention while waiting to be compressed.
+            return;
+        }
+        File target = new File(file.getPath() + ".gz");
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 64 * 1024);
+                try {
+                    byte[] bytes = new byte[64 * 1024];
+                    int len;
+                    while ((len = in.read(bytes)) > 0) {
+                        out.write(bytes, 0, len);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            temp.setLastModified(file.lastModified());
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            if (!file.delete()) {
+                reportError("Can not delete " + file, null, ErrorManager.GENERIC_FAILURE);
+            }
+        } catch (IOException ex) {
+            temp.delete();
+            reportError("Can not compress " + file, ex, ErrorManager.GENERIC_FAILURE);
+        }
+    }
+
+    /**
+     * Delete the oldest rolled segments beyond maxFiles.  Runs on the compressor thread.
+     */
+    private void enforceRetention() {
+        if (maxFiles <= 0) {
+            return;
+        }
+        List<File> rolled = rolledFiles();
+        for (int i = 0; i < rolled.size() - maxFiles; i++) {
+            if (!rolled.get(i).delete()) {
+                reportError("Can not delete " + rolled.get(i), null, ErrorManager.GENERIC_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Get the rolled segments, compressed or not, oldest first.  Removes
+     * temporary files left by an interrupted compression.
+     */
+    private List<File> rolledFiles() {
+        List<File> rolled = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return rolled;
+        }
+        for (File file : files) {
+            Matcher matcher = segmentPattern.matcher(file.getName());
+            if (!matcher.matches()) {
+                // Not a segment of this handler, e.g. of a handler named name.other.
+                continue;
+            }
+            if (matcher.group(4) != null) {
+                file.delete();
+            } else {
+                rolled.add(file);
+            }
+        }
+        File[] sorted = rolled.toArray(new File[rolled.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            public int compare(File a, File b) {
+                // By the time in the name, compressing a segment changes it's modification time.
+                Matcher ma = segmentPattern.matcher(a.getName());
+                Matcher mb = segmentPattern.matcher(b.getName());
+                ma.matches();
+                mb.matches();
+                int result = ma.group(1).compareTo(mb.group(1));
+                if (result != 0) {
+                    return result;
+                }
+                return Long.compare(sequence(ma), sequence(mb));
+            }
+        });
+        return Arrays.asList(sorted);
+    }
+
+    private static long sequence(Matcher matcher) {
+        return matcher.group(2) == null ? 0 : Long.parseLong(matcher.group(2));
+    }
+
+    /**
+     * Get the start of the period holding time.
+     */
+    private long periodStart(long time) {
+        if (period == RollPeriod.NONE) {
+            return Long.MIN_VALUE;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        if (period == RollPeriod.DAILY) {
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+        }
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Get the start of the period after the one holding time.
+     */
+    private long nextRoll(long time) {
+        if (period == RollPeriod.NONE) {
+            return Long.MAX_VALUE;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(periodStart(time));
+        calendar.add(period == RollPeriod.DAILY ? Calendar.DAY_OF_MONTH : Calendar.HOUR_OF_DAY, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static String stringProperty(String property, String defaultValue) {
+        String value = LogManager.getLogManager().getProperty(RollingFileHandler.class.getName() + "." + property);
+        return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+    }
+
+    private static long longProperty(String property, long defaultValue) {
+        try {
+            return Long.parseLong(stringProperty(property, null));
+        } catch (Exception ex) {
+            return defaultValue;
+        }
+    }
+
+    private static RollPeriod rollPeriod() {
+        try {
+            return RollPeriod.valueOf(stringProperty("roll_period", null).toUpperCase());
+        } catch (Exception ex) {
+            return RollPeriod.DAILY;
+        }
+    }
+
+}
@@ -13,8 +13,9 @@ package com.faradice.faraframe.log;
  */
 
 import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.text.MessageFormat;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
@@ -23,22 +24,42 @@ import java.util.logging.LogRecord;
 /**
  * A SimpleFormatter that prints one line instead of two.
  * 
+ * The formatter has no shared mutable state, any number of threads can format
+ * at once.  The date and time are rendered once per second and shared by all
+ * threads, columns are padded from a table of spaces, and lines are built in a
+ * StringBuilder reused by each thread.
+ *
  * @version $Id: SimpleOneLineFormatter.java,v 1.9 2008/03/19 12:32:53 gudmfr Exp $
  */
 
 public class SimpleOneLineFormatter extends Formatter {
 
-    private Date date = new Date();
-
     // private final static String format = "{0}: {1,date,yyyy.MM.dd}
     // {1,time,HH:mm:ss.SSS} - {2}";
 
-    private final static String format = "{0}| {1,date,MM.dd} {1,time,HH:mm:ss} | {2} | {3}";
+    // Renders the same line as "{0}| {1,date,MM.dd} {1,time,HH:mm:ss} | {2} | {3}"
+
+    private static final int LEVEL_WIDTH = 7;
+    private static final int SOURCE_WIDTH = 30;
+
+    private static final char[] spaces = new char[SOURCE_WIDTH];
+    static {
+        Arrays.fill(spaces, ' ');
+    }
+
+    private static final String lineSeparator = System.getProperty("line.separator");
 
-    private MessageFormat formatter = new MessageFormat(format);
-    private Object args[] = new Object[4];
+    /**
+     * Timestamp of the second last formatted, replaced as a whole when the second changes.
+     */
+    private static volatile Timestamp timestamp = new Timestamp(Long.MIN_VALUE, "");
 
-    private String lineSeparator = System.getProperty("line.separator");
+    private static final ThreadLocal<LineBuffer> buffers = new ThreadLocal<LineBuffer>() {
+        @Override
+        protected LineBuffer initialValue() {
+            return new LineBuffer();
+        }
+    };
 
     /**
      * Construct the SimpleOneLineFormatter
@@ -49,58 +70,78 @@ public class SimpleOneLineFormatter extends Formatter {
 
     @Override
     public String format(LogRecord record) {
-        StringBuffer sb = new StringBuffer();
-        // String x;
-        String level = appendSpace(record.getLevel().getLocalizedName(), 7);
-        args[0] = level;
-        date.setTime(record.getMillis());
-        args[1] = date;
-        args[2] = appendSpace(cutBeginning(record.getSourceClassName() + "."
-                + record.getSourceMethodName(), 30), 30);
-        args[3] = formatMessage(record);
-
-        formatter.format(args, sb, null);
-
-        sb.append(lineSeparator);
+        LineBuffer buffer = buffers.get();
+        if (buffer.inUse) {
+            // A message parameter logged while being formatted, do not clobber the outer line.
+            buffer = new LineBuffer();
+        }
+        buffer.inUse = true;
+        try {
+            StringBuilder sb = buffer.builder;
+            sb.setLength(0);
+            appendSpace(sb, record.getLevel().getLocalizedName(), LEVEL_WIDTH);
+            sb.append("| ").append(timestamp(record.getMillis())).append(" | ");
+            appendSource(sb, String.valueOf(record.getSourceClassName()),
+                String.valueOf(record.getSourceMethodName()));
+            sb.append(" | ").append(formatMessage(record));
+            sb.append(lineSeparator);
 
-        if (record.getThrown() != null) {
-            try {
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter(sw);
-                record.getThrown().printStackTrace(pw);
-                pw.close();
-                sb.append(sw.toString());
-            } catch (Exception ex) {
-             // Nothing to do
+            if (record.getThrown() != null) {
+                try {
+                    PrintWriter pw = new PrintWriter(new BuilderWriter(sb));
+                    record.getThrown().printStackTrace(pw);
+                    pw.close();
+                } catch (Exception ex) {
+                 // Nothing to do
+                }
             }
+
+            String line = sb.toString();
+            buffer.trim();
+            return line;
+        } finally {
+            buffer.inUse = false;
         }
+    }
 
-        return sb.toString();
+    /**
+     * Get "MM.dd HH:mm:ss" for a time, rendered once per second.
+     */
+    private static String timestamp(long millis) {
+        long second = Math.floorDiv(millis, 1000L);
+        Timestamp current = timestamp;
+        if (current.second != second) {
+            current = new Timestamp(second, new SimpleDateFormat("MM.dd HH:mm:ss").format(new Date(millis)));
+            timestamp = current;
+        }
+        return current.text;
     }
 
     /**
-     * Method appendSpace: apends white spaces to a string
+     * Method appendSpace: appends str and white spaces up to length
      */
-    private String appendSpace(String str, int length) {
-        StringBuffer s = new StringBuffer(str);
-        while (s.length() < length)
-            s.append(' ');
-        return s.toString();
+    private static void appendSpace(StringBuilder sb, String str, int length) {
+        sb.append(str);
+        if (str.length() < length) {
+            sb.append(spaces, 0, length - str.length());
+        }
     }
 
     /**
-     * Cuts of the beginning of a string if it is longer that a certain length
-     * 
-     * @param s
-     *            The string
-     * @param maxLength
-     * @return a new String that is not longer than maxLength
+     * Append className.methodName, cut at the beginning or padded to SOURCE_WIDTH.
      */
-    private String cutBeginning(String s, int maxLength) {
-        if (s.length() < maxLength) {
-            return s;
+    private static void appendSource(StringBuilder sb, String className, String methodName) {
+        int length = className.length() + 1 + methodName.length();
+        if (length < SOURCE_WIDTH) {
+            sb.append(className).append('.').append(methodName).append(spaces, 0, SOURCE_WIDTH - length);
+            return;
+        }
+        int skip = length - SOURCE_WIDTH;
+        if (skip <= className.length()) {
+            sb.append(className, skip, className.length()).append('.').append(methodName);
+        } else {
+            sb.append(methodName, skip - className.length() - 1, methodName.length());
         }
-        return s.substring(s.length() - maxLength);
     }
 
     /**
@@ -125,7 +166,7 @@ public class SimpleOneLineFormatter extends Formatter {
      * @return a localized and formatted message
      */
     @Override
-    public synchronized String formatMessage(LogRecord record) {
+    public String formatMessage(LogRecord record) {
         String msgFormat = record.getMessage();
         java.util.ResourceBundle catalog = record.getResourceBundle();
         if (catalog != null) {
@@ -155,4 +196,64 @@ public class SimpleOneLineFormatter extends Formatter {
         }
     }
 
-}
+    private static final class Timestamp {
+        final long second;
+        final String text;
+
+        Timestamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Builder reused by all lines formatted on one thread.
+     */
+    private static final class LineBuffer {
+        private static final int MAX_RETAINED = 8192;
+
+        StringBuilder builder = new StringBuilder(256);
+        boolean inUse;
+
+        /**
+         * Drop the builder if an unusually long line made it large.
+         */
+        void trim() {
+            if (builder.capacity() > MAX_RETAINED) {
+                builder = new StringBuilder(256);
+            }
+        }
+    }
+
+    /**
+     * Writer appending to a StringBuilder, so stack traces are not copied.
+     */
+    private static final class BuilderWriter extends Writer {
+        private final StringBuilder sb;
+
+        BuilderWriter(StringBuilder sb) {
+            this.sb = sb;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            sb.append(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            sb.append(str, off, off + len);
+        }
+
+        @Override
+        public void flush() {
+            // Nothing to do
+        }
+
+        @Override
+        public void close() {
+            // Nothing to do
+        }
+    }
+
+}
\ No newline at end of file
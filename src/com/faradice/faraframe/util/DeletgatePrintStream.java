@@ -15,16 +15,44 @@ package com.faradice.faraframe.util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.Charset;
 
 /**
  * A Simple PrintStream that delegates its logic to two other PrintStreams
+ *
+ * In asynchronous tee mode, see setAsyncTee(), only the first stream is written
+ * by the printing thread.  Output for the second stream is copied to a bounded
+ * ring of bytes and written by a background thread, so a slow second stream never
+ * delays the printing thread.  Output that does not fit in the ring is dropped,
+ * counted in getDroppedBytes() and marked in the second stream.  flush() waits
+ * until everything printed before it has been written to both streams.
  * @author josep
  * @version $Revision: 1.3 $ $Date: 2011/04/15 10:00:48 $
  */
 public class DeletgatePrintStream extends PrintStream {
+    /**
+     * PrintStream.charset(), available from JDK 18, else null.
+     */
+    private static final MethodHandle s_oCharset;
+    static {
+        MethodHandle charset = null;
+        try {
+            charset = MethodHandles.publicLookup( ).findVirtual( PrintStream.class, "charset",
+                MethodType.methodType( Charset.class ) );
+        } catch ( Exception ex ) {
+            // Older JDK, PrintStreams use the default charset
+        }
+        s_oCharset = charset;
+    }
+
     private PrintStream m_oOut1;
     private PrintStream m_oOut2;
     private boolean m_bError = false;
+    private volatile Tee m_oTee = null;
+    private long m_lDroppedBytes = 0;
 
     /**
      * Takes two printstreams
@@ -37,14 +65,78 @@ public class DeletgatePrintStream extends PrintStream {
         m_oOut2 = out2;
     }
 
+    /**
+     * Takes two printstreams, the second written in asynchronous tee mode
+     * @param out1 The First, written by the printing thread
+     * @param out2 The Second, written by a background thread
+     * @param ringSize Number of bytes that may wait for the second stream
+     */
+    public DeletgatePrintStream( PrintStream out1, PrintStream out2, int ringSize ) {
+        this( out1, out2 );
+        setAsyncTee( ringSize );
+    }
+
+    /**
+     * Write the second stream from a background thread, through a ring of ringSize bytes.
+     * Replaces any previous ring, after its bytes have been written.
+     * @param ringSize Number of bytes that may wait for the second stream
+     */
+    public synchronized void setAsyncTee( int ringSize ) {
+        Tee old = m_oTee;
+        m_oTee = new Tee( Math.max( 1024, ringSize ) );
+        if ( old != null ) {
+            old.shutdown( );
+        }
+    }
+
+    /**
+     * Write the second stream from the printing thread again.  Bytes waiting in
+     * the ring are written before this returns.
+     */
+    public synchronized void setSyncTee( ) {
+        Tee old = m_oTee;
+        m_oTee = null;
+        if ( old != null ) {
+            old.shutdown( );
+        }
+    }
+
+    /**
+     * @return True if the second stream is written by a background thread
+     */
+    public boolean isAsyncTee( ) {
+        return m_oTee != null;
+    }
+
+    /**
+     * Get the number of bytes not written to the second stream because the ring was full.
+     * @return number of dropped bytes since this stream was created.
+     */
+    public long getDroppedBytes( ) {
+        synchronized ( this ) {
+            long dropped = m_lDroppedBytes;
+            Tee tee = m_oTee;
+            return tee != null ? dropped + tee.getDroppedBytes( ) : dropped;
+        }
+    }
+
+    /**
+     * Flush both streams.  In asynchronous tee mode, waits until everything
+     * printed before this call has been written to the second stream.
+     */
     @Override
     public void flush() {
         m_oOut1.flush( );
+        Tee tee = m_oTee;
+        if ( tee != null ) {
+            tee.awaitWritten( );
+        }
         m_oOut2.flush( );
     }
 
     @Override
     public void close() {
+        setSyncTee( );
         m_oOut1.close( );
         m_oOut2.close( );
     }
@@ -62,126 +154,395 @@ public class DeletgatePrintStream extends PrintStream {
     @Override
     public void write(int b) {
         m_oOut1.write( b );
-        m_oOut2.write( b );
+        Tee tee = m_oTee;
+        if ( tee == null || !tee.offer( b ) ) {
+            m_oOut2.write( b );
+        }
     }
 
     @Override
     public void write(byte buf[], int off, int len) {
         m_oOut1.write( buf, off, len );
-        m_oOut2.write( buf, off, len );
+        Tee tee = m_oTee;
+        if ( tee == null || !tee.offer( buf, off, len ) ) {
+            m_oOut2.write( buf, off, len );
+        }
     }
 
     @Override
     public void print(boolean b) {
         m_oOut1.print( b );
-        m_oOut2.print( b );
+        if ( m_oTee == null || !tee( String.valueOf( b ) ) ) {
+            m_oOut2.print( b );
+        }
     }
 
     @Override
     public void print(char c) {
         m_oOut1.print( c );
-        m_oOut2.print( c );
+        if ( m_oTee == null || !tee( String.valueOf( c ) ) ) {
+            m_oOut2.print( c );
+        }
     }
 
     @Override
     public void print(int i) {
         m_oOut1.print( i );
-        m_oOut2.print( i );
+        if ( m_oTee == null || !tee( String.valueOf( i ) ) ) {
+            m_oOut2.print( i );
+        }
     }
 
     @Override
     public void print(long l) {
         m_oOut1.print( l );
-        m_oOut2.print( l );
+        if ( m_oTee == null || !tee( String.valueOf( l ) ) ) {
+            m_oOut2.print( l );
+        }
     }
 
     @Override
     public void print(float f) {
         m_oOut1.print( f );
-        m_oOut2.print( f );
+        if ( m_oTee == null || !tee( String.valueOf( f ) ) ) {
+            m_oOut2.print( f );
+        }
     }
 
     @Override
     public void print(double d) {
         m_oOut1.print( d );
-        m_oOut2.print( d );
+        if ( m_oTee == null || !tee( String.valueOf( d ) ) ) {
+            m_oOut2.print( d );
+        }
     }
 
     @Override
     public void print(char s[]) {
         m_oOut1.print( s );
-        m_oOut2.print( s );
+        if ( m_oTee == null || !tee( String.valueOf( s ) ) ) {
+            m_oOut2.print( s );
+        }
     }
 
     @Override
     public void print(String s) {
         m_oOut1.print( s );
-        m_oOut2.print( s );
+        if ( m_oTee == null || !tee( String.valueOf( s ) ) ) {
+            m_oOut2.print( s );
+        }
     }
 
     @Override
     public void print(Object obj) {
         m_oOut1.print( obj );
-        m_oOut2.print( obj );
+        if ( m_oTee == null || !tee( String.valueOf( obj ) ) ) {
+            m_oOut2.print( obj );
+        }
     }
 
     @Override
     public void println() {
         m_oOut1.println( );
-        m_oOut2.println( );
+        if ( m_oTee == null || !tee( System.lineSeparator( ) ) ) {
+            m_oOut2.println(  );
+        }
     }
 
     @Override
     public void println(boolean x) {
         m_oOut1.println( x );
-        m_oOut2.println( x );
+        if ( m_oTee == null || !tee( String.valueOf( x ) + System.lineSeparator( ) ) ) {
+            m_oOut2.println( x );
+        }
     }
 
     @Override
     public void println(char x) {
         m_oOut1.println( x );
-        m_oOut2.println( x );
+        if ( m_oTee == null || !tee( String.valueOf( x ) + System.lineSeparator( ) ) ) {
+            m_oOut2.println( x );
+        }
     }
 
     @Override
     public void println(int x) {
         m_oOut1.println( x );
-        m_oOut2.println( x );
+        if ( m_oTee == null || !tee( String.valueOf( x ) + System.lineSeparator( ) ) ) {
+            m_oOut2.println( x );
+        }
     }
 
     @Override
     public void println(long x) {
         m_oOut1.println( x );
-        m_oOut2.println( x );
+        if ( m_oTee == null || !tee( String.valueOf( x ) + System.lineSeparator( ) ) ) {
+            m_oOut2.println( x );
+        }
     }
 
     @Override
     public void println(float x) {
         m_oOut1.println( x );
-        m_oOut2.println( x );
+        if ( m_oTee == null || !tee( String.valueOf( x ) + System.lineSeparator( ) ) ) {
+            m_oOut2.println( x );
+        }
     }
 
     @Override
     public void println(double x) {
         m_oOut1.println( x );
-        m_oOut2.println( x );
+        if ( m_oTee == null || !tee( String.valueOf( x ) + System.lineSeparator( ) ) ) {
+            m_oOut2.println( x );
+        }
     }
 
     @Override
     public void println(char x[]) {
         m_oOut1.println( x );
-        m_oOut2.println( x );
+        if ( m_oTee == null || !tee( String.valueOf( x ) + System.lineSeparator( ) ) ) {
+            m_oOut2.println( x );
+        }
     }
 
     @Override
     public void println(String x) {
         m_oOut1.println( x );
-        m_oOut2.println( x );
+        if ( m_oTee == null || !tee( String.valueOf( x ) + System.lineSeparator( ) ) ) {
+            m_oOut2.println( x );
+        }
     }
 
     @Override
     public void println(Object x) {
         m_oOut1.println( x );
-        m_oOut2.println( x );
+        if ( m_oTee == null || !tee( String.valueOf( x ) + System.lineSeparator( ) ) ) {
+            m_oOut2.println( x );
+        }
+    }
+
+    /**
+     * Pass text to the ring in asynchronous tee mode.
+     * @return False if the text must be printed to the second stream directly
+     */
+    private boolean tee( String text ) {
+        Tee tee = m_oTee;
+        if ( tee == null ) {
+            return false;
+        }
+        byte[] bytes = text.getBytes( tee.m_oCharset );
+        return tee.offer( bytes, 0, bytes.length );
+    }
+
+    /**
+     * Get the charset print() of stream encodes text with, so text passed through
+     * the ring is encoded exactly as printing it directly would.
+     */
+    private static Charset charsetOf( PrintStream stream ) {
+        if ( s_oCharset != null ) {
+            try {
+                return (Charset) s_oCharset.invoke( stream );
+            } catch ( Throwable ex ) {
+                // Fall back to the default
+            }
+        }
+        return Charset.defaultCharset( );
+    }
+
+    /**
+     * Ring of bytes waiting for the second stream, and the thread writing them.
+     */
+    private class Tee implements Runnable {
+        private final byte[] m_abRing;
+        /**
+         * Total number of bytes added to and taken from the ring, guarded by this.
+         */
+        private long m_lAdded = 0;
+        private long m_lTaken = 0;
+        private long m_lDropped = 0;
+        private long m_lUnreported = 0;
+        private boolean m_bRunning = true;
+        private final Thread m_oThread;
+        /**
+         * Charset of the second stream.
+         */
+        final Charset m_oCharset = charsetOf( m_oOut2 );
+
+        Tee( int size ) {
+            m_abRing = new byte[size];
+            m_oThread = new Thread( this, "DeletgatePrintStream-tee" );
+            m_oThread.setDaemon( true );
+            m_oThread.start( );
+        }
+
+        /**
+         * Copy bytes to the ring, or drop them if they do not fit because of
+         * bytes still waiting in the ring.  Bytes that would not fit even in the
+         * empty ring are written to the second stream directly, once the bytes
+         * waiting in the ring have been written.
+         * @return False if the bytes must be written to the second stream directly
+         */
+        synchronized boolean offer( byte buf[], int off, int len ) {
+            if ( !m_bRunning ) {
+                return false;
+            }
+            if ( len > m_abRing.length ) {
+                awaitWritten( );
+                if ( !m_bRunning || m_lAdded != m_lTaken ) {
+                    return false;
+                }
+                if ( m_lUnreported > 0 ) {
+                    byte[] mark = mark( );
+                    m_oOut2.write( mark, 0, mark.length );
+                    m_lUnreported = 0;
+                }
+                // Holding the lock, no bytes can be added to the ring meanwhile.
+                m_oOut2.write( buf, off, len );
+                m_oOut2.flush( );
+                return true;
+            }
+            if ( makeRoom( len ) ) {
+                put( buf, off, len );
+            }
+            return true;
+        }
+
+        /**
+         * Copy one byte to the ring, or drop it if it does not fit.
+         * @return False if the ring is shut down
+         */
+        synchronized boolean offer( int b ) {
+            if ( !m_bRunning ) {
+                return false;
+            }
+            if ( makeRoom( 1 ) ) {
+                boolean wasEmpty = m_lAdded == m_lTaken;
+                m_abRing[(int) ( m_lAdded % m_abRing.length )] = (byte) b;
+                m_lAdded++;
+                if ( wasEmpty ) {
+                    notifyAll( );
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Mark earlier dropped bytes and check there is room for len bytes,
+         * counting them as dropped if not.
+         * @return True if len bytes can be put
+         */
+        private boolean makeRoom( int len ) {
+            if ( m_lUnreported > 0 ) {
+                byte[] mark = mark( );
+                if ( free( ) < mark.length + len ) {
+                    drop( len );
+                    return false;
+                }
+                put( mark, 0, mark.length );
+                m_lUnreported = 0;
+            }
+            if ( free( ) < len ) {
+                drop( len );
+                return false;
+            }
+            return true;
+        }
+
+        private byte[] mark( ) {
+            return ( System.lineSeparator( ) + "... " + m_lUnreported + " bytes dropped"
+                + System.lineSeparator( ) ).getBytes( m_oCharset );
+        }
+
+        private int free( ) {
+            return m_abRing.length - (int) ( m_lAdded - m_lTaken );
+        }
+
+        private void drop( int len ) {
+            m_lDropped += len;
+            m_lUnreported += len;
+        }
+
+        private void put( byte buf[], int off, int len ) {
+            boolean wasEmpty = m_lAdded == m_lTaken;
+            int pos = (int) ( m_lAdded % m_abRing.length );
+            int first = Math.min( len, m_abRing.length - pos );
+            System.arraycopy( buf, off, m_abRing, pos, first );
+            System.arraycopy( buf, off + first, m_abRing, 0, len - first );
+            m_lAdded += len;
+            if ( wasEmpty ) {
+                notifyAll( );
+            }
+        }
+
+        synchronized long getDroppedBytes( ) {
+            return m_lDropped;
+        }
+
+        /**
+         * Wait until the bytes added so far have been written to the second stream.
+         */
+        synchronized void awaitWritten( ) {
+            long goal = m_lAdded;
+            while ( m_lTaken < goal && m_oThread.isAlive( ) && Thread.currentThread( ) != m_oThread ) {
+                try {
+                    wait( 100 );
+                } catch ( InterruptedException ex ) {
+                    Thread.currentThread( ).interrupt( );
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Stop accepting bytes and wait until the ring has been written.
+         */
+        void shutdown( ) {
+            synchronized ( this ) {
+                m_bRunning = false;
+                notifyAll( );
+            }
+            if ( Thread.currentThread( ) != m_oThread ) {
+                try {
+                    m_oThread.join( );
+                } catch ( InterruptedException ex ) {
+                    Thread.currentThread( ).interrupt( );
+                }
+            }
+            synchronized ( DeletgatePrintStream.this ) {
+                m_lDroppedBytes += getDroppedBytes( );
+            }
+        }
+
+        public void run() {
+            while ( true ) {
+                int pos;
+                int len;
+                synchronized ( this ) {
+                    while ( m_lAdded == m_lTaken ) {
+                        if ( !m_bRunning ) {
+                            return;
+                        }
+                        try {
+                            wait( );
+                        } catch ( InterruptedException ex ) {
+                            // Stop only when shut down and written
+                        }
+                    }
+                    pos = (int) ( m_lTaken % m_abRing.length );
+                    len = (int) Math.min( m_lAdded - m_lTaken, m_abRing.length - pos );
+                }
+                // Bytes up to m_lAdded are not overwritten until m_lTaken passes them.
+                m_oOut2.write( m_abRing, pos, len );
+                boolean empty;
+                synchronized ( this ) {
+                    m_lTaken += len;
+                    empty = m_lAdded == m_lTaken;
+                    notifyAll( );
+                }
+                if ( empty ) {
+                    m_oOut2.flush( );
+                }
+            }
+        }
     }
 }
\ No newline at end of file